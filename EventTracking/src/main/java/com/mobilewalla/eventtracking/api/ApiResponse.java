@@ -1,5 +1,6 @@
 package com.mobilewalla.eventtracking.api;
 
+import com.fasterxml.jackson.annotation.JsonAlias;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.io.Serializable;
@@ -17,4 +18,9 @@ import lombok.NoArgsConstructor;
 public class ApiResponse implements Serializable {
     private String token;
     private String message;
+    /**
+     * Optional token lifetime in seconds.
+     */
+    @JsonAlias("expires_in")
+    private Long expiresIn;
 }
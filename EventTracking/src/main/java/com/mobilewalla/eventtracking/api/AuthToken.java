@@ -0,0 +1,72 @@
+package com.mobilewalla.eventtracking.api;
+
+import android.util.Base64;
+
+import com.mobilewalla.eventtracking.util.Utils;
+
+import org.json.JSONObject;
+
+/**
+ * A bearer token returned by the authentication API together with its expiry, taken from the
+ * server provided TTL or, failing that, from the JWT {@code exp} claim.
+ */
+class AuthToken {
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    final String value;
+    /**
+     * Expiry in epoch millis, or -1 if unknown.
+     */
+    final long expiresAtMillis;
+
+    AuthToken(String value, long expiresAtMillis) {
+        this.value = value;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * @return the token, or null if the response has none
+     */
+    static AuthToken fromResponse(ApiResponse response, long nowMillis) {
+        String token = response.getToken();
+        if (Utils.isEmptyString(token)) {
+            return null;
+        }
+        Long expiresIn = response.getExpiresIn();
+        long expiresAt = expiresIn != null && expiresIn > 0
+                ? nowMillis + expiresIn * 1000 : parseJwtExpiry(token);
+        return new AuthToken(token, expiresAt);
+    }
+
+    /**
+     * Reads the {@code exp} claim of a JWT.
+     *
+     * @return the expiry in epoch millis, or -1 if the token is not a JWT or has no expiry
+     */
+    static long parseJwtExpiry(String token) {
+        if (token.startsWith(BEARER_PREFIX)) {
+            token = token.substring(BEARER_PREFIX.length());
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return -1;
+        }
+        try {
+            byte[] payload = Base64.decode(parts[1],
+                    Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+            JSONObject claims = new JSONObject(new String(payload, "UTF-8"));
+            long exp = claims.optLong("exp", -1);
+            return exp > 0 ? exp * 1000 : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return whether the token expires within {@code marginMillis} of {@code nowMillis}; a token
+     * with unknown expiry never does
+     */
+    boolean expiresWithin(long nowMillis, long marginMillis) {
+        return expiresAtMillis >= 0 && nowMillis >= expiresAtMillis - marginMillis;
+    }
+}
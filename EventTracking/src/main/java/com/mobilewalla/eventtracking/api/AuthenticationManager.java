@@ -0,0 +1,218 @@
+package com.mobilewalla.eventtracking.api;
+
+import static com.mobilewalla.eventtracking.api.Constants.JSON;
+import static com.mobilewalla.eventtracking.api.Constants.POST_AUTHENTICATE;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Obtains and holds the bearer token for one set of server credentials. Clients configured with
+ * the same url, username and password share a manager, and with it the token, and concurrent
+ * authentication attempts collapse into a single request whose result every caller reuses.
+ * Authentication never blocks the caller: the token is passed to a {@link TokenCallback}.
+ */
+class AuthenticationManager {
+
+    private static final String TAG = AuthenticationManager.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final ConcurrentMap<String, AuthenticationManager> managers = new ConcurrentHashMap<>();
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    /**
+     * Receives the result of {@link #getValidToken} or {@link #authenticate}, on OkHttp's
+     * dispatcher thread, or on the calling thread if no request was needed.
+     */
+    interface TokenCallback {
+        /**
+         * @param token the token, or null if authentication failed
+         * @param error the network error authentication failed with, if any
+         */
+        void onToken(AuthToken token, IOException error);
+    }
+
+    /**
+     * Guards the authentication request, so only one is in flight at a time.
+     */
+    private final Object authenticateLock = new Object();
+    /**
+     * The callers waiting for the authentication request in flight, or null if none is.
+     */
+    private List<TokenCallback> waiting;
+    private volatile Request authenticateRequest;
+    private volatile AuthToken token;
+
+    AuthenticationManager(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @return the manager shared by all clients using these credentials
+     */
+    static AuthenticationManager forCredentials(String url, String username, String password) {
+        String key = url + "\n" + username + "\n" + password;
+        AuthenticationManager manager = managers.get(key);
+        if (manager == null) {
+            AuthenticationManager created = new AuthenticationManager(url, username, password);
+            manager = managers.putIfAbsent(key, created);
+            if (manager == null) {
+                manager = created;
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * @return the current token, or null if there is none
+     */
+    AuthToken getToken() {
+        return token;
+    }
+
+    /**
+     * Replaces the current token, e.g. with one set explicitly by the app.
+     */
+    void setToken(AuthToken token) {
+        this.token = token;
+    }
+
+    /**
+     * Adopts a previously persisted token, unless a token has been obtained in the meantime.
+     */
+    void restoreToken(AuthToken restored) {
+        synchronized (authenticateLock) {
+            if (token == null) {
+                token = restored;
+            }
+        }
+    }
+
+    /**
+     * Passes the current token to the callback, authenticating first if there is none or it is
+     * about to expire.
+     */
+    void getValidToken(Call.Factory client, long nowMillis, TokenCallback callback) {
+        AuthToken current = token;
+        if (isUsable(current, nowMillis)) {
+            callback.onToken(current, null);
+            return;
+        }
+        authenticate(client, current, nowMillis, callback);
+    }
+
+    /**
+     * Fetches a new token to replace {@code stale}, the token the caller found to be expired or
+     * rejected. If another caller already replaced it, that token is passed on instead of making
+     * a second request; callers that arrive while a request is in flight get its result.
+     */
+    void authenticate(Call.Factory client, AuthToken stale, final long nowMillis, TokenCallback callback) {
+        AuthToken reused = null;
+        synchronized (authenticateLock) {
+            AuthToken current = token;
+            if (current != stale && isUsable(current, nowMillis)) {
+                reused = current;
+            } else if (waiting != null) {
+                waiting.add(callback);
+                return;
+            } else {
+                waiting = new ArrayList<>();
+                waiting.add(callback);
+            }
+        }
+        if (reused != null) {
+            callback.onToken(reused, null);
+            return;
+        }
+
+        Request request;
+        try {
+            request = getAuthenticateRequest();
+        } catch (JsonProcessingException e) {
+            logger.e(TAG, "Error in calling authenticate API");
+            finishAuthenticate(null, e);
+            return;
+        }
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response authenticateResponse) {
+                AuthToken fresh = null;
+                IOException error = null;
+                try {
+                    ApiResponse authenticateApiResponse = mapper.readValue(authenticateResponse.body().string(), ApiResponse.class);
+                    AuthToken parsed = AuthToken.fromResponse(authenticateApiResponse, nowMillis);
+                    if (authenticateResponse.code() == 200 && parsed != null) {
+                        fresh = parsed;
+                        logger.d(TAG, "Successfully called an authenticate API");
+                    } else {
+                        logger.eFormat(TAG, "Error in calling authenticate API : %s", authenticateApiResponse.getMessage());
+                    }
+                } catch (JsonProcessingException e) {
+                    logger.e(TAG, "Error in calling authenticate API");
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    authenticateResponse.close();
+                }
+                finishAuthenticate(fresh, error);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                finishAuthenticate(null, e);
+            }
+        });
+    }
+
+    private void finishAuthenticate(AuthToken fresh, IOException error) {
+        List<TokenCallback> callbacks;
+        synchronized (authenticateLock) {
+            if (fresh != null) {
+                token = fresh;
+            }
+            callbacks = waiting;
+            waiting = null;
+        }
+        for (TokenCallback callback : callbacks) {
+            callback.onToken(fresh, error);
+        }
+    }
+
+    private static boolean isUsable(AuthToken token, long nowMillis) {
+        return token != null
+                && !token.expiresWithin(nowMillis, Constants.AUTH_TOKEN_EXPIRY_SKEW_MILLIS);
+    }
+
+    // the credentials never change for a manager, so the serialized body is built only once
+    private Request getAuthenticateRequest() throws JsonProcessingException {
+        Request request = authenticateRequest;
+        if (request == null) {
+            ApiRequest authenticateReq = new ApiRequest(username, password);
+            RequestBody body = RequestBody.create(JSON, mapper.writeValueAsBytes(authenticateReq));
+            request = new Request.Builder()
+                    .url(url + POST_AUTHENTICATE)
+                    .post(body)
+                    .build();
+            authenticateRequest = request;
+        }
+        return request;
+    }
+}
@@ -0,0 +1,93 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the enveloped upload format, which sends the fields shared by the events of a batch
+ * once in a header instead of on every event:
+ * <pre>
+ * {"header": {"deviceId": "...", "osName": "android", ..., "serverUploadTime": "..."},
+ *  "events": [{"eventType": "...", "eventTime": "...", ...}, ...]}
+ * </pre>
+ * Header fields are defaults for every event; a field an event still carries overrides the
+ * header, and a null field means the event had none.
+ */
+class BatchEnvelope {
+
+    /**
+     * The fields that describe the device, user and library rather than the event, so are
+     * usually the same for a whole batch.
+     */
+    static final String[] HOISTED_FIELDS = {
+            "userId", "deviceId", "versionName", "library", "osName", "osVersion", "apiLevel",
+            "deviceBrand", "deviceManufacturer", "deviceModel", "deviceCarrier", "country",
+            "language", "platform", "apiProperties"
+    };
+
+    private BatchEnvelope() {} // prevent instantiation
+
+    /**
+     * Moves the fields in {@link #HOISTED_FIELDS} that at least two events share into the
+     * header, using the most common value of each; on a tie, the value that got there first.
+     * The events are modified in place.
+     *
+     * @param events           the events of the batch
+     * @param serverUploadTime the upload time of the whole batch
+     * @return the enveloped batch
+     */
+    static ObjectNode wrap(List<ObjectNode> events, String serverUploadTime) {
+        JsonNodeFactory nodes = JsonNodeFactory.instance;
+        ObjectNode header = nodes.objectNode();
+        for (String field : HOISTED_FIELDS) {
+            hoist(field, events, header);
+        }
+        header.put("serverUploadTime", serverUploadTime);
+
+        ArrayNode array = nodes.arrayNode(events.size());
+        array.addAll(events);
+        ObjectNode envelope = nodes.objectNode();
+        envelope.set("header", header);
+        envelope.set("events", array);
+        return envelope;
+    }
+
+    private static void hoist(String field, List<ObjectNode> events, ObjectNode header) {
+        // JsonNode equality is by type and value, so the string "1" doesn't match the number 1
+        Map<JsonNode, Integer> counts = new HashMap<>();
+        JsonNode common = null;
+        int commonCount = 0;
+        for (ObjectNode event : events) {
+            JsonNode value = event.get(field);
+            if (value == null) {
+                continue;
+            }
+            Integer count = counts.get(value);
+            count = count == null ? 1 : count + 1;
+            counts.put(value, count);
+            if (count > commonCount) {
+                common = value;
+                commonCount = count;
+            }
+        }
+        if (commonCount < 2) {
+            return; // nothing saved
+        }
+
+        for (ObjectNode event : events) {
+            JsonNode value = event.get(field);
+            if (value == null) {
+                event.putNull(field); // keep the header default off this event
+            } else if (common.equals(value)) {
+                event.remove(field);
+            }
+        }
+        header.set(field, common);
+    }
+}
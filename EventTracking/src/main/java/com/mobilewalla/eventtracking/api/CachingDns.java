@@ -0,0 +1,60 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import okhttp3.Dns;
+
+/**
+ * Caches host lookups for a fixed time, so an upload following a warm-up, or another upload
+ * within the TTL, doesn't wait on DNS. If a lookup fails, for example on a flaky network, the
+ * last known addresses are used even if they expired.
+ */
+class CachingDns implements Dns {
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAtMillis;
+
+        Entry(List<InetAddress> addresses, long expiresAtMillis) {
+            this.addresses = addresses;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final Dns delegate;
+    private final long ttlMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    CachingDns(Dns delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        Entry entry = entries.get(hostname);
+        long now = currentTimeMillis();
+        if (entry != null && now < entry.expiresAtMillis) {
+            return entry.addresses;
+        }
+        List<InetAddress> addresses;
+        try {
+            addresses = delegate.lookup(hostname);
+        } catch (UnknownHostException e) {
+            if (entry != null) {
+                return entry.addresses;
+            }
+            throw e;
+        }
+        entries.put(hostname, new Entry(addresses, now + ttlMillis));
+        return addresses;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,63 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * Request body that encodes another body with a {@link ContentCodec} as it streams out, and
+ * counts the encoded bytes put on the wire. The caller sets the matching
+ * {@code Content-Encoding} header.
+ */
+class CompressedRequestBody extends RequestBody {
+
+    private final RequestBody delegate;
+    private final ContentCodec codec;
+    private volatile long bytesWritten = -1;
+
+    CompressedRequestBody(RequestBody delegate, ContentCodec codec) {
+        this.delegate = delegate;
+        this.codec = codec;
+    }
+
+    ContentCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the encoded size of the last write, or -1 if the body has not been written
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return -1; // unknown until encoded
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        final long[] count = {0};
+        BufferedSink encoded = Okio.buffer(codec.encode(new ForwardingSink(sink) {
+            @Override
+            public void write(Buffer source, long byteCount) throws IOException {
+                super.write(source, byteCount);
+                count[0] += byteCount;
+            }
+        }));
+        delegate.writeTo(encoded);
+        encoded.close();
+        bytesWritten = count[0];
+    }
+}
@@ -0,0 +1,149 @@
+package com.mobilewalla.eventtracking.api;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+/**
+ * Follows the device's network state through {@link ConnectivityManager} callbacks, so uploads
+ * can be suspended while there is no network, flushed on reconnect and made more eagerly on
+ * unmetered networks. Uses the default network callback on Android 7.0 and up, a network callback
+ * for internet capable networks on 5.x and 6.0, and the connectivity broadcast before that.
+ * Until the first update, and if the state cannot be read, the device is assumed to be online on
+ * a metered network.
+ */
+class ConnectivityMonitor {
+
+    private static final String TAG = ConnectivityMonitor.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+
+    interface Listener {
+        /**
+         * Called on a framework thread whenever the connection or its metering changes.
+         */
+        void onConnectivityChanged(boolean connected, boolean unmetered);
+    }
+
+    private final Listener listener;
+    private ConnectivityManager connectivityManager;
+    private volatile boolean connected = true;
+    private volatile boolean unmetered = false;
+    private boolean started = false;
+
+    ConnectivityMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    boolean isUnmetered() {
+        return connected && unmetered;
+    }
+
+    /**
+     * Reads the current state and subscribes to changes. Does nothing if already started.
+     */
+    synchronized void start(Context context) {
+        if (started) {
+            return;
+        }
+        started = true;
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return;
+        }
+        try {
+            refresh();
+            if (Build.VERSION.SDK_INT >= 24) {
+                registerDefaultNetworkCallback();
+            } else if (Build.VERSION.SDK_INT >= 21) {
+                registerNetworkCallback();
+            } else {
+                context.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        refresh();
+                    }
+                }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            // ACCESS_NETWORK_STATE missing, or too many callbacks registered by the app
+            logger.wFormat(TAG, "Unable to monitor connectivity, assuming online: %s", e);
+        }
+    }
+
+    @TargetApi(24)
+    private void registerDefaultNetworkCallback() {
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                update(capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                        capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                update(false, false);
+            }
+        });
+    }
+
+    // before Android 7.0 there is no default network callback; any change re-reads the
+    // active network, which is the one uploads will use
+    @TargetApi(21)
+    private void registerNetworkCallback() {
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                refresh();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                refresh();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                refresh();
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private void refresh() {
+        try {
+            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+            boolean isConnected = info != null && info.isConnected();
+            update(isConnected, isConnected && !connectivityManager.isActiveNetworkMetered());
+        } catch (SecurityException e) {
+            logger.wFormat(TAG, "Unable to read connectivity, assuming online: %s", e);
+        }
+    }
+
+    private void update(boolean connected, boolean unmetered) {
+        boolean changed;
+        synchronized (this) {
+            changed = connected != this.connected || unmetered != this.unmetered;
+            this.connected = connected;
+            this.unmetered = unmetered;
+        }
+        if (changed) {
+            logger.dFormat(TAG, "Connectivity changed, connected: %s, unmetered: %s", connected, unmetered);
+            listener.onConnectivityChanged(connected, unmetered);
+        }
+    }
+}
@@ -23,19 +23,57 @@ public class Constants {
     public static final int API_VERSION = 1;
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 4;
 
     public static final String DEFAULT_INSTANCE = "$default_instance";
 
     public static final int EVENT_UPLOAD_THRESHOLD = 30;
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 50;
+    public static final int EVENT_UPLOAD_CONCURRENCY = 3;
+    public static final int EVENT_UPLOAD_MAX_CONCURRENCY = 8;
+    public static final long EVENT_UPLOAD_MAX_BATCH_BYTES = 512 * 1024; // 512kB before compression
+    public static final int QUARANTINE_MAX_COUNT = 100;
+    public static final int UPLOAD_MAX_UNACKNOWLEDGED_ATTEMPTS = 5; // uploads before a skipped event is quarantined
+    public static final int UPLOAD_STREAM_PAGE_SIZE = 50;
+    public static final long EVENT_UPLOAD_TIMEOUT_MILLIS = 30 * 1000; // 30s
+    public static final long UPLOAD_BATCH_TARGET_BYTES = 128 * 1024; // 128kB on the wire
+    public static final long UPLOAD_BATCH_TARGET_LATENCY_MILLIS = 3 * 1000; // 3s
+    public static final int UPLOAD_BATCH_ADDITIVE_INCREASE = 5;
+    public static final double UPLOAD_BATCH_DECREASE_FACTOR = 0.5;
+    public static final int UNMETERED_UPLOAD_SCALE = 2; // bigger batches, half the period
+    public static final int HTTP_MAX_IDLE_CONNECTIONS = 4;
+    public static final long HTTP_KEEP_ALIVE_MILLIS = 5 * 60 * 1000; // 5m
+    public static final long HTTP_CONNECT_TIMEOUT_MILLIS = 15 * 1000; // 15s
+    public static final long HTTP_READ_TIMEOUT_MILLIS = 20 * 1000; // 20s
+    public static final long HTTP_WRITE_TIMEOUT_MILLIS = 20 * 1000; // 20s
+    public static final long HTTP_CALL_TIMEOUT_MILLIS = 60 * 1000; // 1m
+    public static final long DNS_CACHE_TTL_MILLIS = 5 * 60 * 1000; // 5m
+    public static final int UPLOAD_JOB_ID_BASE = 0x4D570000;
+    public static final long UPLOAD_JOB_BACKOFF_MILLIS = 30 * 1000; // 30s
+    public static final int LOW_BATTERY_PERCENT = 15;
+    public static final double CHARGING_UPLOAD_PERIOD_FACTOR = 0.5;
+    public static final int CHARGING_UPLOAD_BATCH_SCALE = 2;
+    public static final double POWER_SAVE_UPLOAD_PERIOD_FACTOR = 4;
+    public static final int POWER_SAVE_UPLOAD_BATCH_SCALE = 2;
+    public static final long UPLOAD_RETRY_BASE_DELAY_MILLIS = 1000; // 1s
+    public static final long UPLOAD_RETRY_MAX_DELAY_MILLIS = 5 * 60 * 1000; // 5m
+    public static final long UPLOAD_RETRY_AFTER_MAX_MILLIS = 60 * 60 * 1000; // 1h
+    public static final int UPLOAD_CIRCUIT_BREAKER_THRESHOLD = 5;
+    public static final long UPLOAD_CIRCUIT_BREAKER_OPEN_MILLIS = 10 * 60 * 1000; // 10m
     public static final int EVENT_MAX_COUNT = 1000;
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
+    public static final long AUTH_TOKEN_REFRESH_MARGIN_MILLIS = 5 * 60 * 1000; // 5m
+    public static final long AUTH_TOKEN_EXPIRY_SKEW_MILLIS = 30 * 1000; // 30s
     public static final int MAX_STRING_LENGTH = 1024;
     public static final int MAX_PROPERTY_KEYS = 1000;
+    public static final long DEVICE_INFO_RESOLVE_TIMEOUT_MILLIS = 500;
+    public static final int DEVICE_INFO_PREFETCH_THREADS = 4;
+    public static final long DEVICE_INFO_PREFETCH_KEEP_ALIVE_MILLIS = 10 * 1000; // 10s
+    public static final int GEOCODE_CACHE_MAX_ENTRIES = 64;
+    public static final double GEOCODE_CACHE_CELL_SIZE_DEGREES = 0.1; // ~11km of latitude
 
     public static final String PREFKEY_LAST_EVENT_ID = PACKAGE_NAME + ".lastEventId";
     public static final String PREFKEY_LAST_EVENT_TIME = PACKAGE_NAME + ".lastEventTime";
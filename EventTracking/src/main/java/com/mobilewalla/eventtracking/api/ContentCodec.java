@@ -0,0 +1,24 @@
+package com.mobilewalla.eventtracking.api;
+
+import okio.Sink;
+
+/**
+ * A {@code Content-Encoding} the SDK can compress upload bodies with. Implement this to plug in
+ * codecs beyond the built-in ones in {@link ContentCodecs}.
+ */
+public interface ContentCodec {
+
+    /**
+     * @return the {@code Content-Encoding} token, e.g. {@code "gzip"}
+     */
+    String getEncoding();
+
+    /**
+     * Wraps the sink so bytes written to the result reach {@code sink} encoded. Closing the
+     * returned sink must finish the encoding and close {@code sink}.
+     *
+     * @param sink the sink receiving encoded bytes
+     * @return the sink to write plain bytes to
+     */
+    Sink encode(Sink sink);
+}
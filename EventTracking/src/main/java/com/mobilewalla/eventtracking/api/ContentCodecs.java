@@ -0,0 +1,82 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import okio.DeflaterSink;
+import okio.GzipSink;
+import okio.Sink;
+
+/**
+ * The built-in {@link ContentCodec}s.
+ */
+public final class ContentCodecs {
+
+    public static final ContentCodec GZIP = new ContentCodec() {
+        @Override
+        public String getEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public Sink encode(Sink sink) {
+            return new GzipSink(sink);
+        }
+    };
+
+    public static final ContentCodec DEFLATE = new ContentCodec() {
+        @Override
+        public String getEncoding() {
+            return "deflate";
+        }
+
+        @Override
+        public Sink encode(Sink sink) {
+            // the "deflate" content coding is the zlib format, i.e. a Deflater with its header
+            return new DeflaterSink(sink, new Deflater());
+        }
+    };
+
+    private ContentCodecs() {} // prevent instantiation
+
+    /**
+     * Picks the first of the preferred codecs a server lists in an {@code Accept-Encoding}
+     * header, as sent with a 415 response (RFC 7694).
+     *
+     * @param preferred      the codecs the SDK may use, most preferred first
+     * @param acceptEncoding the header value, may be null
+     * @return the codec to use, or null to send bodies unencoded
+     */
+    static ContentCodec negotiate(Iterable<ContentCodec> preferred, String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        for (ContentCodec codec : preferred) {
+            if (isAccepted(codec.getEncoding(), acceptEncoding)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAccepted(String encoding, String acceptEncoding) {
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().toLowerCase(Locale.US);
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -15,15 +15,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = DatabaseHelper.class.getName();
 
-    static final Map<String, DatabaseHelper> instances = new HashMap<>();
+    static final ConcurrentMap<String, DatabaseHelper> instances = new ConcurrentHashMap<>();
 
     protected static final String STORE_TABLE_NAME = "store";
     protected static final String LONG_STORE_TABLE_NAME = "long_store";
@@ -33,6 +35,21 @@ class DatabaseHelper extends SQLiteOpenHelper {
     protected static final String EVENT_TABLE_NAME = "events";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String SIZE_FIELD = "size";
+    /**
+     * How many uploads the server acknowledged without taking or rejecting the event.
+     */
+    private static final String ATTEMPTS_FIELD = "attempts";
+
+    protected static final String QUARANTINE_TABLE_NAME = "quarantine";
+    private static final String REASON_FIELD = "reason";
+    private static final String TIME_FIELD = "time";
+    /**
+     * The stored size of an event, for rows written before the size column existed the length
+     * of their text in bytes; length() of the text itself counts characters.
+     */
+    private static final String SIZE_EXPRESSION =
+            "COALESCE(" + SIZE_FIELD + ", length(CAST(" + EVENT_FIELD + " AS BLOB)))";
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -42,7 +59,15 @@ class DatabaseHelper extends SQLiteOpenHelper {
             + VALUE_FIELD + " INTEGER);";
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " INTEGER, "
+            + ATTEMPTS_FIELD + " INTEGER NOT NULL DEFAULT 0);";
+    private static final String CREATE_QUARANTINE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + QUARANTINE_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY, "
+            + EVENT_FIELD + " TEXT, " + REASON_FIELD + " TEXT, " + TIME_FIELD + " INTEGER);";
+    private static final String ADD_EVENTS_SIZE_COLUMN = "ALTER TABLE "
+            + EVENT_TABLE_NAME + " ADD COLUMN " + SIZE_FIELD + " INTEGER;";
+    private static final String ADD_EVENTS_ATTEMPTS_COLUMN = "ALTER TABLE "
+            + EVENT_TABLE_NAME + " ADD COLUMN " + ATTEMPTS_FIELD + " INTEGER NOT NULL DEFAULT 0;";
 
     File file;
     private String instanceName;
@@ -55,12 +80,16 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return getDatabaseHelper(context, null);
     }
 
-    static synchronized DatabaseHelper getDatabaseHelper(Context context, String instance) {
+    static DatabaseHelper getDatabaseHelper(Context context, String instance) {
         instance = Utils.normalizeInstanceName(instance);
         DatabaseHelper dbHelper = instances.get(instance);
         if (dbHelper == null) {
+            // constructing the helper does not open the database, so losing the race is cheap
             dbHelper = new DatabaseHelper(context.getApplicationContext(), instance);
-            instances.put(instance, dbHelper);
+            DatabaseHelper existing = instances.putIfAbsent(instance, dbHelper);
+            if (existing != null) {
+                dbHelper = existing;
+            }
         }
         return dbHelper;
     }
@@ -91,6 +120,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // for the field will be monotonically increasing and unique over the
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
+        db.execSQL(CREATE_QUARANTINE_TABLE);
 
         // NOTE: the database file can become corrupted between interactions
         // getWriteableDatabase and getReadableDatabase will test for corruption
@@ -102,7 +132,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 callResetListenerOnDatabaseReset = false;  // guards against stack overflow
                 databaseResetListener.onDatabaseReset(db);
             } catch (SQLiteException e) {
-                logger.e(TAG, String.format("databaseReset callback failed during onCreate"), e);
+                logger.e(TAG, "databaseReset callback failed during onCreate", e);
             } finally {
                 callResetListenerOnDatabaseReset = true;
             }
@@ -124,17 +154,24 @@ class DatabaseHelper extends SQLiteOpenHelper {
         switch (oldVersion) {
             case 1:
                 db.execSQL(CREATE_STORE_TABLE);
+                // existing rows keep a null size, see SIZE_EXPRESSION
+                db.execSQL(ADD_EVENTS_SIZE_COLUMN);
                 if (newVersion <= 2) break;
 
             case 2:
                 db.execSQL(CREATE_LONG_STORE_TABLE);
+                db.execSQL(CREATE_QUARANTINE_TABLE);
                 if (newVersion <= 3) break;
 
             case 3:
+                db.execSQL(ADD_EVENTS_ATTEMPTS_COLUMN);
+                if (newVersion <= 4) break;
+
+            case 4:
                 break;
 
             default:
-                logger.e(TAG, "onUpgrade() with unknown oldVersion " + oldVersion);
+                logger.eFormat(TAG, "onUpgrade() with unknown oldVersion %d", oldVersion);
                 resetDatabase(db);
         }
     }
@@ -143,6 +180,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + QUARANTINE_TABLE_NAME);
         onCreate(db);
     }
 
@@ -163,11 +201,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
             db = getWritableDatabase();
             result = insertOrReplaceKeyValueToTable(db, table, key, value);
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("insertOrReplaceKeyValue in %s failed", table), e);
+            logger.eFormat(TAG, e, "insertOrReplaceKeyValue in %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("insertOrReplaceKeyValue in %s failed", table), e);
+            logger.eFormat(TAG, e, "insertOrReplaceKeyValue in %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
@@ -209,11 +247,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = getWritableDatabase();
             result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("deleteKey from %s failed", table), e);
+            logger.eFormat(TAG, e, "deleteKey from %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("deleteKey from %s failed", table), e);
+            logger.eFormat(TAG, e, "deleteKey from %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
@@ -232,16 +270,17 @@ class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = getWritableDatabase();
             ContentValues contentValues = new ContentValues();
             contentValues.put(EVENT_FIELD, event);
+            contentValues.put(SIZE_FIELD, Utils.utf8Length(event));
             result = insertEventContentValuesIntoTable(db, table, contentValues);
             if (result == -1) {
-                logger.w(TAG, String.format("Insert into %s failed", table));
+                logger.wFormat(TAG, "Insert into %s failed", table);
             }
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("addEvent to %s failed", table), e);
+            logger.eFormat(TAG, e, "addEvent to %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("addEvent to %s failed", table), e);
+            logger.eFormat(TAG, e, "addEvent to %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
@@ -275,11 +314,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 value = table.equals(STORE_TABLE_NAME) ? cursor.getString(1) : cursor.getLong(1);
             }
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("getValue from %s failed", table), e);
+            logger.eFormat(TAG, e, "getValue from %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("getValue from %s failed", table), e);
+            logger.eFormat(TAG, e, "getValue from %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
@@ -301,6 +340,116 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return getEventsFromTable(EVENT_TABLE_NAME, upToId, limit);
     }
 
+    /**
+     * Picks the next upload batch: the oldest events with an id above {@code afterId} and up to
+     * {@code upToId}, at most {@code limit} of them and no more than {@code maxBytes} in total by
+     * their stored size. The first event is always picked, however large, so it can't block the
+     * ones after it. A negative {@code upToId} or {@code maxBytes} leaves that bound open. Only
+     * reads the ids and sizes of the events, not the events themselves.
+     *
+     * @return the ids of the first and last event and the number of events, or null if there
+     * are none
+     */
+    synchronized long[] getEventRange(long afterId, long upToId, long limit, long maxBytes) {
+        Cursor cursor = null;
+        long[] range = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = queryDb(
+                db, EVENT_TABLE_NAME, new String[] { ID_FIELD, SIZE_EXPRESSION },
+                getRangeSelection(afterId, upToId), null, null, null,
+                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+            );
+
+            long totalBytes = 0;
+            while (cursor.moveToNext()) {
+                long size = cursor.getLong(1);
+                if (maxBytes >= 0 && range != null && totalBytes + size > maxBytes) {
+                    break;
+                }
+                totalBytes += size;
+                long eventId = cursor.getLong(0);
+                if (range == null) {
+                    range = new long[] { eventId, eventId, 1 };
+                } else {
+                    range[1] = eventId;
+                    range[2]++;
+                }
+            }
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "getEventRange from %s failed", EVENT_TABLE_NAME);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "getEventRange from %s failed", EVENT_TABLE_NAME);
+            delete();
+        } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
+            handleIfCursorRowTooLargeException(e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            close();
+        }
+        return range;
+    }
+
+    /**
+     * Receives stored events from {@link #readEvents}, while the database is locked.
+     */
+    interface EventVisitor {
+        void visit(long eventId, String event);
+    }
+
+    /**
+     * Passes the oldest events with an id above {@code afterId} and up to {@code upToId} to the
+     * visitor as stored, at most {@code limit} of them.
+     *
+     * @return the id of the last event read, or -1 if there were none
+     */
+    synchronized long readEvents(long afterId, long upToId, long limit, EventVisitor visitor) {
+        Cursor cursor = null;
+        long lastId = -1;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = queryDb(
+                db, EVENT_TABLE_NAME, new String[] { ID_FIELD, EVENT_FIELD },
+                getRangeSelection(afterId, upToId), null, null, null,
+                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+            );
+
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(0);
+                visitor.visit(lastId, cursor.getString(1));
+            }
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "readEvents from %s failed", EVENT_TABLE_NAME);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "readEvents from %s failed", EVENT_TABLE_NAME);
+            delete();
+        } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
+            handleIfCursorRowTooLargeException(e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            close();
+        }
+        return lastId;
+    }
+
+    private static String getRangeSelection(long afterId, long upToId) {
+        String selection = upToId >= 0 ? ID_FIELD + " <= " + upToId : null;
+        if (afterId >= 0) {
+            selection = (selection == null ? "" : selection + " AND ") + ID_FIELD + " > " + afterId;
+        }
+        return selection;
+    }
+
     protected synchronized List<JSONObject> getEventsFromTable(String table, long upToId, long limit) throws JSONException {
         List<JSONObject> events = new LinkedList<>();
         Cursor cursor = null;
@@ -324,10 +473,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 events.add(obj);
             }
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("getEvents from %s failed", table), e);
+            logger.eFormat(TAG, e, "getEvents from %s failed", table);
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("getEvents from %s failed", table), e);
+            logger.eFormat(TAG, e, "getEvents from %s failed", table);
             delete();
         } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
             handleIfCursorRowTooLargeException(e);
@@ -359,11 +508,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
             statement = db.compileStatement(query);
             numberRows = statement.simpleQueryForLong();
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
+            logger.eFormat(TAG, e, "getNumberRows for %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
+            logger.eFormat(TAG, e, "getNumberRows for %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
@@ -394,11 +543,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 logger.w(TAG, e);
             }
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("getNthEventId from %s failed", table), e);
+            logger.eFormat(TAG, e, "getNthEventId from %s failed", table);
             // Hard to recover from SQLiteExceptions, just start fresh
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("getNthEventId from %s failed", table), e);
+            logger.eFormat(TAG, e, "getNthEventId from %s failed", table);
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
@@ -419,16 +568,151 @@ class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = getWritableDatabase();
             db.delete(table, ID_FIELD + " <= " + maxId, null);
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("removeEvents from %s failed", table), e);
+            logger.eFormat(TAG, e, "removeEvents from %s failed", table);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "removeEvents from %s failed", table);
+            delete();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Removes the events with ids from {@code minId} to {@code maxId}, inclusive.
+     */
+    synchronized void removeEvents(long minId, long maxId) {
+        removeEventsFromTable(EVENT_TABLE_NAME, minId, maxId);
+    }
+
+    private synchronized void removeEventsFromTable(String table, long minId, long maxId) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(table, ID_FIELD + " >= " + minId + " AND " + ID_FIELD + " <= " + maxId, null);
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "removeEvents from %s failed", table);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "removeEvents from %s failed", table);
+            delete();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Removes the events with the given ids.
+     */
+    synchronized void removeEvents(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(EVENT_TABLE_NAME, ID_FIELD + " IN (" + joinIds(ids) + ")", null);
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "removeEvents from %s failed", EVENT_TABLE_NAME);
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("removeEvents from %s failed", table), e);
+            logger.eFormat(TAG, e, "removeEvents from %s failed", EVENT_TABLE_NAME);
             delete();
         } finally {
             close();
         }
     }
 
+    /**
+     * Moves the events with the given ids out of the upload queue into the quarantine table,
+     * which keeps only the most recent {@link Constants#QUARANTINE_MAX_COUNT} events.
+     *
+     * @param reason why the events were rejected, may be null
+     */
+    synchronized void quarantineEvents(Collection<Long> ids, String reason, long timeMillis) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        String selection = ID_FIELD + " IN (" + joinIds(ids) + ")";
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.execSQL("INSERT OR REPLACE INTO " + QUARANTINE_TABLE_NAME
+                        + " (" + ID_FIELD + ", " + EVENT_FIELD + ", " + REASON_FIELD + ", " + TIME_FIELD + ")"
+                        + " SELECT " + ID_FIELD + ", " + EVENT_FIELD + ", ?, ? FROM " + EVENT_TABLE_NAME
+                        + " WHERE " + selection, new Object[] { reason, timeMillis });
+                db.delete(EVENT_TABLE_NAME, selection, null);
+                db.delete(QUARANTINE_TABLE_NAME, ID_FIELD + " NOT IN (SELECT " + ID_FIELD + " FROM "
+                        + QUARANTINE_TABLE_NAME + " ORDER BY " + ID_FIELD + " DESC LIMIT "
+                        + Constants.QUARANTINE_MAX_COUNT + ")", null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "quarantineEvents into %s failed", QUARANTINE_TABLE_NAME);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "quarantineEvents into %s failed", QUARANTINE_TABLE_NAME);
+            delete();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Counts an upload against the events left between {@code minId} and {@code maxId}, i.e. the
+     * ones an acknowledgement neither accepted nor rejected, once those are removed.
+     *
+     * @return the ids of the events that have now been left out {@code maxAttempts} times
+     */
+    synchronized List<Long> countUnacknowledgedAttempt(long minId, long maxId, int maxAttempts) {
+        List<Long> exhausted = new ArrayList<>();
+        String selection = ID_FIELD + " BETWEEN " + minId + " AND " + maxId;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.execSQL("UPDATE " + EVENT_TABLE_NAME + " SET " + ATTEMPTS_FIELD + " = "
+                        + ATTEMPTS_FIELD + " + 1 WHERE " + selection);
+                cursor = queryDb(
+                    db, EVENT_TABLE_NAME, new String[] { ID_FIELD },
+                    selection + " AND " + ATTEMPTS_FIELD + " >= " + maxAttempts,
+                    null, null, null, ID_FIELD + " ASC", null
+                );
+                while (cursor.moveToNext()) {
+                    exhausted.add(cursor.getLong(0));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.eFormat(TAG, e, "countUnacknowledgedAttempt in %s failed", EVENT_TABLE_NAME);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.eFormat(TAG, e, "countUnacknowledgedAttempt in %s failed", EVENT_TABLE_NAME);
+            delete();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            close();
+        }
+        return exhausted;
+    }
+
+    private static String joinIds(Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(id.longValue());
+        }
+        return builder.toString();
+    }
+
     synchronized void removeEvent(long id) {
         removeEventFromTable(EVENT_TABLE_NAME, id);
     }
@@ -438,10 +722,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = getWritableDatabase();
             db.delete(table, ID_FIELD + " = " + id, null);
         } catch (SQLiteException e) {
-            logger.e(TAG, String.format("removeEvent from %s failed", table), e);
+            logger.eFormat(TAG, e, "removeEvent from %s failed", table);
             delete();
         } catch (StackOverflowError e) {
-            logger.e(TAG, String.format("removeEvent from %s failed", table), e);
+            logger.eFormat(TAG, e, "removeEvent from %s failed", table);
             delete();
         } finally {
             close();
@@ -465,7 +749,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
                     db = getWritableDatabase();
                     databaseResetListener.onDatabaseReset(db);
                 } catch (SQLiteException e) {
-                    logger.e(TAG, String.format("databaseReset callback failed during delete"), e);
+                    logger.e(TAG, "databaseReset callback failed during delete", e);
                 }
                 finally {
                     callResetListenerOnDatabaseReset = true;
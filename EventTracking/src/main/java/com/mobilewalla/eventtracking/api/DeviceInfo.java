@@ -9,11 +9,16 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.Process;
 import android.provider.Settings.Secure;
 import android.telephony.TelephonyManager;
 
+import com.mobilewalla.eventtracking.util.ReflectionCache;
 import com.mobilewalla.eventtracking.util.Utils;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -21,6 +26,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("MissingPermission")
 public class DeviceInfo {
@@ -32,41 +48,225 @@ public class DeviceInfo {
     private static final String SETTING_LIMIT_AD_TRACKING = "limit_ad_tracking";
     private static final String SETTING_ADVERTISING_ID = "advertising_id";
 
+    /**
+     * The database key for the last resolved {@link Snapshot}.
+     */
+    static final String SNAPSHOT_KEY = "device_info_snapshot";
+
+    /**
+     * The database key for the persisted {@link GeocodeCache}.
+     */
+    static final String GEOCODE_CACHE_KEY = "geocode_cache";
+
+    /**
+     * Shared executor resolving the expensive fields (advertising id, Google Play Services
+     * availability, carrier and country) in parallel, off the log thread. Idle threads time out,
+     * so nothing is kept alive once prefetching is done.
+     */
+    private static final ThreadPoolExecutor prefetchExecutor = createPrefetchExecutor();
+
     private boolean locationListening = true;
 
     private Context context;
 
-    private CachedInfo cachedInfo;
+    private volatile CachedInfo cachedInfo;
+
+    /**
+     * Store the snapshot is persisted to, or null to not persist.
+     */
+    private final DatabaseHelper dbHelper;
+
+    /**
+     * The expensive fields as last resolved, either restored from the store at startup or
+     * published once the background revalidation finished. Replaced as a whole, so readers
+     * never see a mix of old and new values.
+     */
+    private volatile Snapshot snapshot;
+
+    private final GeocodeCache geocodeCache;
+
+    /**
+     * Immutable copy of the expensive fields, persisted so warm starts can serve them without
+     * waiting on IPC and reflection. The advertising id and limit ad tracking flag are left
+     * out: the user may reset the id or limit ad tracking between runs, so they are only ever
+     * served from a fresh lookup.
+     */
+    private static final class Snapshot {
+        private static final String GPS_ENABLED = "gpsEnabled";
+        private static final String CARRIER = "carrier";
+        private static final String COUNTRY = "country";
+
+        private final boolean gpsEnabled;
+        private final String carrier;
+        private final String country;
+
+        private Snapshot(boolean gpsEnabled, String carrier, String country) {
+            this.gpsEnabled = gpsEnabled;
+            this.carrier = carrier;
+            this.country = country;
+        }
+
+        private static Snapshot fromJSONString(String json) {
+            if (Utils.isEmptyString(json)) {
+                return null;
+            }
+            try {
+                JSONObject obj = new JSONObject(json);
+                return new Snapshot(
+                        obj.optBoolean(GPS_ENABLED, false),
+                        obj.has(CARRIER) ? obj.getString(CARRIER) : null,
+                        obj.has(COUNTRY) ? obj.getString(COUNTRY) : null
+                );
+            } catch (JSONException e) {
+                MobilewallaLog.getLogger().w(TAG, "Discarding unreadable device info snapshot", e);
+                return null;
+            }
+        }
+
+        private String toJSONString() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put(GPS_ENABLED, gpsEnabled);
+            obj.put(CARRIER, carrier);
+            obj.put(COUNTRY, country);
+            return obj.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Snapshot)) return false;
+            Snapshot other = (Snapshot) o;
+            return gpsEnabled == other.gpsEnabled
+                    && equalStrings(carrier, other.carrier)
+                    && equalStrings(country, other.country);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = gpsEnabled ? 1 : 0;
+            result = 31 * result + (carrier != null ? carrier.hashCode() : 0);
+            result = 31 * result + (country != null ? country.hashCode() : 0);
+            return result;
+        }
+
+        private static boolean equalStrings(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private long resolveTimeoutMillis = Constants.DEVICE_INFO_RESOLVE_TIMEOUT_MILLIS;
 
     /**
-     * Internal class serves as a cache
+     * Internal class serves as a cache. Cheap fields are read inline, expensive ones resolve
+     * independently on {@link #prefetchExecutor}.
      */
     private class CachedInfo {
-        private String advertisingId;
-        private String country;
-        private String versionName;
-        private String osName;
-        private String osVersion;
-        private String brand;
-        private String manufacturer;
-        private String model;
-        private String carrier;
-        private String language;
-        private boolean limitAdTrackingEnabled;
-        private boolean gpsEnabled; // google play services
+        private final long resolveDeadlineNanos;
+        private final String versionName;
+        private final String osName;
+        private final String osVersion;
+        private final String brand;
+        private final String manufacturer;
+        private final String model;
+        private final String language;
+        private final Future<String> advertisingId;
+        private final Future<String> carrier;
+        private final Future<String> country;
+        private final Future<Boolean> gpsEnabled; // google play services
+        /**
+         * Written by the advertising id lookup. Only read once the lookup is done, see
+         * {@link #isLimitAdTrackingEnabled()}; stays false if the lookup can't run or fails.
+         */
+        private volatile boolean limitAdTrackingEnabled = false;
+        private final AtomicInteger pending = new AtomicInteger(4);
 
         private CachedInfo() {
-            advertisingId = getAdvertisingId();
+            resolveDeadlineNanos = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(resolveTimeoutMillis);
             versionName = getVersionName();
             osName = getOsName();
             osVersion = getOsVersion();
             brand = getBrand();
             manufacturer = getManufacturer();
             model = getModel();
-            carrier = getCarrier();
-            country = getCountry();
             language = getLanguage();
-            gpsEnabled = checkGPSEnabled();
+            // all fields are assigned before any task starts, since the last one to finish
+            // reads them all when publishing the snapshot
+            FutureTask<String> advertisingIdTask = newResolveTask(this::getAdvertisingId);
+            FutureTask<String> carrierTask = newResolveTask(this::getCarrier);
+            FutureTask<String> countryTask = newResolveTask(this::getCountry);
+            FutureTask<Boolean> gpsEnabledTask = newResolveTask(this::checkGPSEnabled);
+            advertisingId = advertisingIdTask;
+            carrier = carrierTask;
+            country = countryTask;
+            gpsEnabled = gpsEnabledTask;
+            resolveAsync(advertisingIdTask);
+            resolveAsync(carrierTask);
+            resolveAsync(countryTask);
+            resolveAsync(gpsEnabledTask);
+        }
+
+        private <T> FutureTask<T> newResolveTask(Callable<T> callable) {
+            return new FutureTask<T>(callable) {
+                @Override
+                protected void done() {
+                    if (pending.decrementAndGet() == 0) {
+                        publishSnapshot(CachedInfo.this);
+                    }
+                }
+            };
+        }
+
+        private void resolveAsync(FutureTask<?> task) {
+            try {
+                prefetchExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        /**
+         * Returns the resolved value, waiting at most until {@link #resolveDeadlineNanos} (a
+         * bound shared by all fields, so early events don't pay one timeout per field), or the
+         * placeholder if the value is not ready by then or its lookup failed.
+         */
+        private <T> T await(Future<T> future, T placeholder) {
+            try {
+                if (future.isDone()) {
+                    return future.get();
+                }
+                long remaining = resolveDeadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return placeholder;
+                }
+                return future.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return placeholder;
+            } catch (ExecutionException e) {
+                return placeholder;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return placeholder;
+            }
+        }
+
+        private <T> T awaitUninterruptibly(Future<T> future, T placeholder) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        return placeholder;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
 
         /**
@@ -143,16 +343,8 @@ public class DeviceInfo {
             if (recent != null) {
                 try {
                     if (Geocoder.isPresent()) {
-                        Geocoder geocoder = getGeocoder();
-                        List<Address> addresses = geocoder.getFromLocation(recent.getLatitude(),
-                                recent.getLongitude(), 1);
-                        if (addresses != null) {
-                            for (Address address : addresses) {
-                                if (address != null) {
-                                    return address.getCountryCode();
-                                }
-                            }
-                        }
+                        return geocodeCache.getCountryCode(recent.getLatitude(),
+                                recent.getLongitude());
                     }
                 } catch (IOException e) {
                     // Failed to reverse geocode location
@@ -206,28 +398,32 @@ public class DeviceInfo {
             ContentResolver cr = context.getContentResolver();
 
             limitAdTrackingEnabled = Secure.getInt(cr, SETTING_LIMIT_AD_TRACKING, 0) == 1;
-            advertisingId = Secure.getString(cr, SETTING_ADVERTISING_ID);
-
-            return advertisingId;
+            return Secure.getString(cr, SETTING_ADVERTISING_ID);
         }
 
         private String getAndCacheGoogleAdvertisingId() {
+            String advertisingId = null;
             try {
-                Class AdvertisingIdClient = Class
-                        .forName("com.google.android.gms.ads.identifier.AdvertisingIdClient");
-                Method getAdvertisingInfo = AdvertisingIdClient.getMethod("getAdvertisingIdInfo",
-                        Context.class);
+                Method getAdvertisingInfo = ReflectionCache.findMethod(
+                        "com.google.android.gms.ads.identifier.AdvertisingIdClient",
+                        "getAdvertisingIdInfo", Context.class);
+                if (getAdvertisingInfo == null) {
+                    MobilewallaLog.getLogger().w(TAG, "Google Play Services SDK not found!");
+                    return null;
+                }
                 Object advertisingInfo = getAdvertisingInfo.invoke(null, context);
-                Method isLimitAdTrackingEnabled = advertisingInfo.getClass().getMethod(
-                        "isLimitAdTrackingEnabled");
+                Method isLimitAdTrackingEnabled = ReflectionCache.findMethod(
+                        advertisingInfo.getClass(), "isLimitAdTrackingEnabled");
+                Method getId = ReflectionCache.findMethod(advertisingInfo.getClass(), "getId");
+                if (isLimitAdTrackingEnabled == null || getId == null) {
+                    MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
+                    return null;
+                }
                 Boolean limitAdTrackingEnabled = (Boolean) isLimitAdTrackingEnabled
                         .invoke(advertisingInfo);
                 this.limitAdTrackingEnabled =
                         limitAdTrackingEnabled != null && limitAdTrackingEnabled;
-                Method getId = advertisingInfo.getClass().getMethod("getId");
                 advertisingId = (String) getId.invoke(advertisingInfo);
-            } catch (ClassNotFoundException e) {
-                MobilewallaLog.getLogger().w(TAG, "Google Play Services SDK not found!");
             } catch (InvocationTargetException e) {
                 MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
             } catch (Exception e) {
@@ -240,47 +436,155 @@ public class DeviceInfo {
         private boolean checkGPSEnabled() {
             // This should not be called on the main thread.
             try {
-                Class GPSUtil = Class
-                        .forName("com.google.android.gms.common.GooglePlayServicesUtil");
-                Method getGPSAvailable = GPSUtil.getMethod("isGooglePlayServicesAvailable",
-                        Context.class);
+                Class<?> GPSUtil = ReflectionCache
+                        .findClass("com.google.android.gms.common.GooglePlayServicesUtil");
+                if (GPSUtil == null) {
+                    MobilewallaLog.getLogger().w(TAG, "Google Play Services Util not found!");
+                    return false;
+                }
+                Method getGPSAvailable = ReflectionCache.findMethod(GPSUtil,
+                        "isGooglePlayServicesAvailable", Context.class);
+                if (getGPSAvailable == null) {
+                    MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
+                    return false;
+                }
                 Integer status = (Integer) getGPSAvailable.invoke(null, context);
                 // status 0 corresponds to com.google.android.gms.common.ConnectionResult.SUCCESS;
                 return status != null && status.intValue() == 0;
             } catch (NoClassDefFoundError e) {
                 MobilewallaLog.getLogger().w(TAG, "Google Play Services Util not found!");
-            } catch (ClassNotFoundException e) {
-                MobilewallaLog.getLogger().w(TAG, "Google Play Services Util not found!");
-            } catch (NoSuchMethodException e) {
-                MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
             } catch (InvocationTargetException e) {
                 MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
             } catch (IllegalAccessException e) {
                 MobilewallaLog.getLogger().w(TAG, "Google Play Services not available");
             } catch (Exception e) {
-                MobilewallaLog.getLogger().w(TAG,
-                        "Error when checking for Google Play Services: " + e);
+                MobilewallaLog.getLogger().wFormat(TAG, "Error when checking for Google Play Services: %s", e);
             }
             return false;
         }
     }
 
     public DeviceInfo(Context context, boolean locationListening) {
+        this(context, locationListening, null);
+    }
+
+    /**
+     * Creates a DeviceInfo that restores its last resolved snapshot from, and persists it to,
+     * the given store.
+     */
+    DeviceInfo(Context context, boolean locationListening, final DatabaseHelper dbHelper) {
         this.context = context;
         this.locationListening = locationListening;
+        this.dbHelper = dbHelper;
+        this.geocodeCache = new GeocodeCache(this::reverseGeocodeCountry, dbHelper == null ? null
+                : new GeocodeCache.Store() {
+                    @Override
+                    public String read() {
+                        return dbHelper.getValue(GEOCODE_CACHE_KEY);
+                    }
+
+                    @Override
+                    public void write(String value) {
+                        dbHelper.insertOrReplaceKeyValue(GEOCODE_CACHE_KEY, value);
+                    }
+                });
+    }
+
+    private static ThreadPoolExecutor createPrefetchExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "deviceInfoThread-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Constants.DEVICE_INFO_PREFETCH_THREADS, Constants.DEVICE_INFO_PREFETCH_THREADS,
+                Constants.DEVICE_INFO_PREFETCH_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private CachedInfo getCachedInfo() {
-        if (cachedInfo == null) {
-            cachedInfo = new CachedInfo();
+        CachedInfo result = cachedInfo;
+        if (result == null) {
+            synchronized (this) {
+                result = cachedInfo;
+                if (result == null) {
+                    if (dbHelper != null) {
+                        snapshot = Snapshot.fromJSONString(dbHelper.getValue(SNAPSHOT_KEY));
+                    }
+                    result = new CachedInfo();
+                    cachedInfo = result;
+                }
+            }
         }
-        return cachedInfo;
+        return result;
     }
 
+    /**
+     * Called on a prefetch thread once every expensive field has resolved. Swaps the fresh
+     * values in and persists them if they changed.
+     */
+    private void publishSnapshot(CachedInfo info) {
+        Snapshot fresh = new Snapshot(
+                info.awaitUninterruptibly(info.gpsEnabled, false),
+                info.awaitUninterruptibly(info.carrier, null),
+                info.awaitUninterruptibly(info.country, null)
+        );
+        Snapshot previous = snapshot;
+        snapshot = fresh;
+        if (dbHelper == null || fresh.equals(previous)) {
+            return;
+        }
+        try {
+            dbHelper.insertOrReplaceKeyValue(SNAPSHOT_KEY, fresh.toJSONString());
+        } catch (JSONException e) {
+            MobilewallaLog.getLogger().w(TAG, "Failed to persist device info snapshot", e);
+        }
+    }
+
+    /**
+     * Starts resolving all device fields in the background and returns immediately. Until they
+     * resolve, getters serve the snapshot persisted by the previous run; on a first run, and
+     * always for the advertising id and limit ad tracking flag, they wait a bounded time, then
+     * fall back to a placeholder.
+     */
     public void prefetch() {
         getCachedInfo();
     }
 
+    /**
+     * Sets how long, measured from {@link #prefetch()}, getters may block waiting for an
+     * expensive field before returning a placeholder. Call before prefetching.
+     *
+     * @param resolveTimeoutMillis the bound in milliseconds
+     */
+    public void setResolveTimeoutMillis(long resolveTimeoutMillis) {
+        this.resolveTimeoutMillis = resolveTimeoutMillis;
+    }
+
+    /**
+     * Blocks until the live advertising id lookup has finished and returns its result, ignoring
+     * any placeholder or persisted snapshot. Only for callers that must not act on a stale
+     * value, such as deriving the device id from the advertising id.
+     *
+     * @return the advertising id, or null if unavailable or limit ad tracking is enabled
+     */
+    String awaitAdvertisingId() {
+        CachedInfo info = getCachedInfo();
+        String advertisingId = info.awaitUninterruptibly(info.advertisingId, null);
+        return info.limitAdTrackingEnabled ? null : advertisingId;
+    }
+
     public static String generateUUID() {
         return UUID.randomUUID().toString();
     }
@@ -310,11 +614,17 @@ public class DeviceInfo {
     }
 
     public String getCarrier() {
-        return getCachedInfo().carrier;
+        CachedInfo info = getCachedInfo();
+        Snapshot current = snapshot;
+        return current != null ? current.carrier : info.await(info.carrier, null);
     }
 
     public String getCountry() {
-        return getCachedInfo().country;
+        // until the reverse geocode / network lookup is done, the locale is the best guess
+        CachedInfo info = getCachedInfo();
+        Snapshot current = snapshot;
+        return current != null ? current.country
+                : info.await(info.country, Locale.getDefault().getCountry());
     }
 
     public String getLanguage() {
@@ -322,14 +632,23 @@ public class DeviceInfo {
     }
 
     public String getAdvertisingId() {
-        return getCachedInfo().advertisingId;
+        // never from the snapshot, see Snapshot
+        CachedInfo info = getCachedInfo();
+        return info.await(info.advertisingId, null);
     }
 
     public boolean isLimitAdTrackingEnabled() {
-        return getCachedInfo().limitAdTrackingEnabled;
+        // never from the snapshot, and limited while the lookup that writes the flag is pending
+        CachedInfo info = getCachedInfo();
+        info.await(info.advertisingId, null);
+        return !info.advertisingId.isDone() || info.limitAdTrackingEnabled;
     }
 
-    public boolean isGooglePlayServicesEnabled() { return getCachedInfo().gpsEnabled; }
+    public boolean isGooglePlayServicesEnabled() {
+        CachedInfo info = getCachedInfo();
+        Snapshot current = snapshot;
+        return current != null ? current.gpsEnabled : info.await(info.gpsEnabled, false);
+    }
 
     public Location getMostRecentLocation() {
         if (!isLocationListening()) {
@@ -397,6 +716,18 @@ public class DeviceInfo {
         this.locationListening = locationListening;
     }
 
+    private String reverseGeocodeCountry(double latitude, double longitude) throws IOException {
+        List<Address> addresses = getGeocoder().getFromLocation(latitude, longitude, 1);
+        if (addresses != null) {
+            for (Address address : addresses) {
+                if (address != null) {
+                    return address.getCountryCode();
+                }
+            }
+        }
+        return null;
+    }
+
     // @VisibleForTesting
     protected Geocoder getGeocoder() {
         return new Geocoder(context, Locale.ENGLISH);
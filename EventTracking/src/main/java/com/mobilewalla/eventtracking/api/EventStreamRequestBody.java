@@ -0,0 +1,175 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.mobilewalla.eventtracking.util.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * An upload body in the default JSON format that streams a range of events out of the database
+ * as it is written, a page at a time, so memory use doesn't grow with the batch size. The
+ * database is only locked while reading a page, not while writing it to the network.
+ * <p>
+ * Stored events are copied to the body as they are, with the fields added at upload time
+ * spliced in before their closing brace, so events are never parsed or serialized again.
+ */
+class EventStreamRequestBody extends RequestBody {
+
+    private static final String TAG = EventStreamRequestBody.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+
+    private static final String PREFIX = "{\"events\":[";
+    private static final String SUFFIX = "]}";
+    private static final String EVENT_ID_FIELD = "\"eventId\":";
+
+    /**
+     * Reads a page of stored events, see {@link DatabaseHelper#readEvents}.
+     */
+    interface EventReader {
+        /**
+         * @return the id of the last event read, or -1 if there were none
+         */
+        long readEvents(long afterId, long upToId, long limit, DatabaseHelper.EventVisitor visitor);
+    }
+
+    private final EventReader reader;
+    private final UploadWindow.Range range;
+    /**
+     * The upload time field and the event's closing brace, the same for every event.
+     */
+    private final String eventSuffix;
+    private volatile long bytesWritten = -1;
+
+    EventStreamRequestBody(EventReader reader, UploadWindow.Range range, String serverUploadTime) {
+        this.reader = reader;
+        this.range = range;
+        this.eventSuffix = getEventSuffix(serverUploadTime);
+    }
+
+    static String getEventSuffix(String serverUploadTime) {
+        return ",\"serverUploadTime\":\""
+                + new String(JsonStringEncoder.getInstance().quoteAsString(serverUploadTime)) + "\"}";
+    }
+
+    @Override
+    public MediaType contentType() {
+        return Constants.JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1; // only known once the events are read
+    }
+
+    /**
+     * @return the number of bytes the last {@link #writeTo} wrote, or -1 if nothing was written
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try {
+            writeEvents(sink);
+        } catch (RuntimeException e) {
+            // OkHttp only reports IOExceptions from asynchronous calls to the callback, anything
+            // else is rethrown on its dispatcher thread and crashes the app
+            throw new IOException(e);
+        }
+    }
+
+    private void writeEvents(BufferedSink sink) throws IOException {
+        sink.writeUtf8(PREFIX);
+        long written = PREFIX.length();
+        boolean first = true;
+        final List<Long> ids = new ArrayList<>(Constants.UPLOAD_STREAM_PAGE_SIZE);
+        final List<String> events = new ArrayList<>(Constants.UPLOAD_STREAM_PAGE_SIZE);
+        long afterId = range.minId - 1;
+        while (afterId < range.maxId) {
+            ids.clear();
+            events.clear();
+            afterId = reader.readEvents(afterId, range.maxId, Constants.UPLOAD_STREAM_PAGE_SIZE,
+                    (eventId, event) -> {
+                        ids.add(eventId);
+                        events.add(event);
+                    });
+            if (afterId < 0) {
+                break;
+            }
+            for (int i = 0; i < events.size(); i++) {
+                if (Utils.isEmptyString(events.get(i))) {
+                    continue;
+                }
+                long eventBytes = writeEvent(sink, events.get(i), ids.get(i), eventSuffix, !first);
+                if (eventBytes < 0) {
+                    logger.eFormat(TAG, "Skipping unreadable event %d", ids.get(i));
+                    continue;
+                }
+                written += eventBytes;
+                first = false;
+            }
+            sink.emitCompleteSegments();
+        }
+        sink.writeUtf8(SUFFIX);
+        bytesWritten = written + SUFFIX.length();
+    }
+
+    /**
+     * Writes a stored event with its id and the upload time added, without parsing it.
+     *
+     * @param event       the event as stored, a JSON object
+     * @param eventSuffix from {@link #getEventSuffix(String)}
+     * @param separator   whether to write a comma first
+     * @return the number of bytes written, or -1 if the event isn't a JSON object and nothing
+     * was written
+     */
+    static long writeEvent(BufferedSink sink, String event, long eventId, String eventSuffix,
+                           boolean separator) throws IOException {
+        int start = 0;
+        int end = event.length();
+        while (start < end && isWhitespace(event.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(event.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start < 2 || event.charAt(start) != '{' || event.charAt(end - 1) != '}') {
+            return -1;
+        }
+        // everything up to the closing brace, which the suffix puts back
+        int lastField = end - 1;
+        while (lastField > start + 1 && isWhitespace(event.charAt(lastField - 1))) {
+            lastField--;
+        }
+        boolean empty = lastField == start + 1;
+
+        long written = 0;
+        if (separator) {
+            sink.writeByte(',');
+            written++;
+        }
+        sink.writeUtf8(event, start, lastField);
+        // JSON whitespace and braces are one byte per char
+        written += Utils.utf8Length(event) - start - (event.length() - lastField);
+        if (!empty) {
+            sink.writeByte(',');
+            written++;
+        }
+        String id = String.valueOf(eventId);
+        sink.writeUtf8(EVENT_ID_FIELD);
+        sink.writeUtf8(id);
+        sink.writeUtf8(eventSuffix);
+        return written + EVENT_ID_FIELD.length() + id.length() + Utils.utf8Length(eventSuffix);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
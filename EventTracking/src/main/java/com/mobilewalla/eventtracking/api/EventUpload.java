@@ -0,0 +1,335 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * One batch upload, from building the request to handling the response. Only one thread
+ * touches it at a time: httpThread builds it, it is sent once a bearer token is at hand, OkHttp's
+ * dispatcher reads the response, and logThread handles it. Everything the upload needs from the client goes through {@link Host}.
+ */
+class EventUpload implements Callback {
+
+    private static final String TAG = EventUpload.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+
+    /**
+     * The client side of an upload.
+     */
+    interface Host {
+        long getCurrentTimeMillis();
+
+        void runOnLogThread(Runnable task);
+
+        void runOnHttpThread(Runnable task);
+
+        UploadWindow getUploadWindow();
+
+        UploadRetryPolicy getUploadRetryPolicy();
+
+        UploadBatchSizer getUploadBatchSizer();
+
+        ContentCodec getUploadContentCodec();
+
+        WireFormat getUploadWireFormat();
+
+        String getEventUploadUrl();
+
+        long getEventUploadTimeoutMillis();
+
+        RequestBody createEventRequestBody(WireFormat format, UploadWindow.Range range,
+                                           String serverUploadTime) throws IOException;
+
+        /**
+         * Passes the token to the callback, authenticating first if needed.
+         */
+        void getBearerToken(Call.Factory client, AuthenticationManager.TokenCallback callback);
+
+        /**
+         * Passes a token replacing the rejected one to the callback.
+         */
+        void reauthenticate(Call.Factory client, AuthToken stale, AuthenticationManager.TokenCallback callback);
+
+        /**
+         * @return whether the upload should be retried with the new codec or format
+         */
+        boolean renegotiateUploadFormat(ContentCodec codec, WireFormat format, Headers headers);
+
+        /**
+         * Deletes the events the server took, and sets aside the ones it rejected.
+         *
+         * @param ack the server's acknowledgement, or null if it took the whole range
+         */
+        void removeUploadedEvents(UploadWindow.Range range, UploadAcknowledgement ack);
+
+        void quarantineEvents(List<Long> eventIds, String reason);
+
+        void onUploadError(Throwable error);
+
+        /**
+         * Called when the upload is queued on httpThread, so it can be canceled before it starts.
+         */
+        void onUploadQueued(EventUpload upload);
+
+        /**
+         * Called once the upload's range is released, or handed to a retry.
+         *
+         * @param succeeded whether the server took the batch, so more may be uploaded now
+         */
+        void onUploadFinished(EventUpload upload, boolean succeeded);
+
+        /**
+         * Called after a failed upload, to schedule the retry.
+         */
+        void onUploadRetry(long delayMillis);
+    }
+
+    private final Host host;
+    private final Call.Factory client;
+    private final int eventCount;
+    private final UploadWindow.Range range;
+    private final String serverUploadTime;
+    private final ContentCodec codec;
+    private final WireFormat format;
+    /**
+     * Set by {@link #cancel()}. OkHttp also cancels calls that time out, so a canceled call
+     * doesn't mean the upload was.
+     */
+    private volatile boolean canceled = false;
+    private volatile Call call;
+    private RequestBody body;
+    private Request.Builder requestBuilder;
+    private AuthToken token;
+    private boolean reauthenticated = false;
+    private long sentAtNanos;
+    private long latencyMillis;
+    private int responseCode;
+    private Headers responseHeaders;
+    private String responseBody;
+
+    EventUpload(Host host, Call.Factory client, int eventCount, UploadWindow.Range range,
+                String serverUploadTime) {
+        this.host = host;
+        this.client = client;
+        this.eventCount = eventCount;
+        this.range = range;
+        this.serverUploadTime = serverUploadTime;
+        this.codec = host.getUploadContentCodec();
+        this.format = host.getUploadWireFormat();
+    }
+
+    /**
+     * Queues the upload on httpThread.
+     */
+    void enqueue() {
+        host.onUploadQueued(this);
+        host.runOnHttpThread(this::start);
+    }
+
+    /**
+     * Builds the request and sends it once a bearer token is at hand. <b>Note: </b> call this on
+     * httpThread, since building the body may read the database.
+     */
+    void start() {
+        if (canceled) {
+            // canceled while queued, never build the request
+            host.runOnLogThread(this::abandon);
+            return;
+        }
+        try {
+            body = host.createEventRequestBody(format, range, serverUploadTime);
+            if (codec != null) {
+                // compressed as the body streams out; the size is only known once written
+                body = new CompressedRequestBody(body, codec);
+            }
+            requestBuilder = new Request.Builder()
+                    .url(host.getEventUploadUrl())
+                    .post(body);
+            if (codec != null) {
+                requestBuilder.header("Content-Encoding", codec.getEncoding());
+            }
+            host.getBearerToken(client, this::sendWithToken);
+        } catch (Exception e) {
+            // anything thrown here would leave the range in flight forever
+            logger.e(TAG, e::toString);
+            host.onUploadError(e);
+            fail(-1);
+        }
+    }
+
+    /**
+     * Cancels the upload. Its events stay unsent and are uploaded again later.
+     */
+    void cancel() {
+        canceled = true;
+        Call current = call;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Runs wherever authentication finished: on OkHttp's dispatcher thread, or on the calling
+     * thread if the token was still valid.
+     */
+    private void sendWithToken(AuthToken token, IOException error) {
+        if (error != null) {
+            logger.e(TAG, error::toString);
+            host.onUploadError(error);
+        }
+        this.token = token;
+        try {
+            send();
+        } catch (Exception e) {
+            logger.e(TAG, e::toString);
+            host.onUploadError(e);
+            fail(-1);
+        }
+    }
+
+    private void send() {
+        if (token == null) {
+            fail(-1);
+            return;
+        }
+        Call current = client.newCall(requestBuilder.header("Authorization", token.value).build());
+        current.timeout().timeout(host.getEventUploadTimeoutMillis(), TimeUnit.MILLISECONDS);
+        call = current;
+        if (canceled) {
+            current.cancel(); // canceled before the call existed, OkHttp reports it as a failure
+        }
+        sentAtNanos = System.nanoTime();
+        current.enqueue(this);
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+        latencyMillis = (System.nanoTime() - sentAtNanos) / 1000000;
+        responseCode = response.code();
+        responseHeaders = response.headers();
+        // only a success may carry a body, see UploadAcknowledgement
+        if (responseCode == 200 || responseCode == 207) {
+            try {
+                responseBody = response.body().string();
+            } catch (IOException e) {
+                // the batch was accepted, treat it as a plain success
+                logger.wFormat(TAG, "Failed to read upload response: %s", e);
+            }
+        }
+        // closing returns the connection to the pool
+        response.close();
+        host.runOnLogThread(this::handleResponse);
+    }
+
+    @Override
+    public void onFailure(Call call, final IOException e) {
+        host.runOnLogThread(() -> handleFailure(e));
+    }
+
+    private void handleResponse() {
+        UploadRetryPolicy retryPolicy = host.getUploadRetryPolicy();
+        UploadBatchSizer batchSizer = host.getUploadBatchSizer();
+        long wireBytes = getWireBytes();
+        if (responseCode == 200 || responseCode == 207) {
+            logger.d(TAG, "Successfully posted an events to API server");
+            retryPolicy.onSuccess();
+            // rejected events don't shrink the batch, only the server's throughput does
+            batchSizer.onSuccess(eventCount, wireBytes, latencyMillis);
+            // release only after deleting, so the range can't be fetched again
+            host.removeUploadedEvents(range, UploadAcknowledgement.parse(responseBody));
+            host.getUploadWindow().release(range);
+            host.onUploadFinished(this, true);
+        } else if (responseCode == 401 && !reauthenticated) {
+            // Token was revoked or expired early, retry once with a fresh one
+            reauthenticated = true;
+            host.reauthenticate(client, token, this::sendWithToken);
+        } else if (responseCode == 415 && host.renegotiateUploadFormat(codec, format, responseHeaders)) {
+            final EventUpload retry = new EventUpload(host, client, eventCount, range, serverUploadTime);
+            // registered before the flag is copied, so a cancel in between reaches one of them
+            host.onUploadQueued(retry);
+            if (canceled) {
+                retry.cancel();
+            }
+            host.runOnHttpThread(retry::start);
+            host.onUploadFinished(this, false);
+        } else if (responseCode == 413) {
+            // Server complained about length of request, backoff and try again
+            retryPolicy.onSuccess(); // the server is up, only the batch size is wrong
+            batchSizer.onTooLarge(eventCount, wireBytes);
+            logger.wFormat(TAG, "Request too large (%d bytes on the wire), will decrease size to %d events and attempt to reupload",
+                    wireBytes, batchSizer.getBatchSize());
+            // If blocked by one massive event, set it aside
+            if (eventCount == 1) {
+                host.quarantineEvents(Collections.singletonList(range.maxId), "Request too large");
+            }
+            host.getUploadWindow().release(range);
+            host.onUploadRetry(0);
+            host.onUploadFinished(this, false);
+        } else {
+            logger.wFormat(TAG, "Upload failed, %d, will attempt to reupload later", responseCode);
+            fail(UploadRetryPolicy.parseRetryAfter(responseHeaders.get("Retry-After"), host.getCurrentTimeMillis()));
+        }
+    }
+
+    /**
+     * The server limit applies to the bytes on the wire, i.e. after compression.
+     */
+    private long getWireBytes() {
+        if (body instanceof CompressedRequestBody) {
+            return ((CompressedRequestBody) body).getBytesWritten();
+        } else if (body instanceof EventStreamRequestBody) {
+            return ((EventStreamRequestBody) body).getBytesWritten();
+        }
+        try {
+            return body.contentLength();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void handleFailure(IOException e) {
+        host.onUploadError(e);
+        if (canceled) {
+            abandon();
+            return;
+        }
+        if (e instanceof java.net.ConnectException || e instanceof java.net.UnknownHostException) {
+            logger.w(TAG, "No internet connection found, unable to upload events");
+        } else if (e instanceof InterruptedIOException) {
+            // a socket timeout, or the whole call exceeded the upload timeout
+            UploadBatchSizer batchSizer = host.getUploadBatchSizer();
+            batchSizer.onTimeout(eventCount);
+            logger.wFormat(TAG, "Upload timed out, will decrease size to %d events and attempt to reupload later",
+                    batchSizer.getBatchSize());
+        } else {
+            logger.e(TAG, e::toString);
+        }
+        fail(-1);
+    }
+
+    private void abandon() {
+        logger.w(TAG, "Upload canceled, will attempt to reupload later");
+        // not the server's fault, but a canceled trial must not keep the circuit waiting
+        host.getUploadRetryPolicy().onCanceled();
+        host.getUploadWindow().release(range);
+        host.onUploadFinished(this, false);
+    }
+
+    private void fail(long retryAfterMillis) {
+        // the events stay in the database and are picked up by the next upload
+        host.getUploadWindow().release(range);
+        long delayMillis = host.getUploadRetryPolicy().onFailure(host.getCurrentTimeMillis(), retryAfterMillis);
+        host.onUploadRetry(delayMillis);
+        host.onUploadFinished(this, false);
+    }
+}
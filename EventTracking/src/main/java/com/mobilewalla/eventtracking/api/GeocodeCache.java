@@ -0,0 +1,125 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of reverse geocoded country codes, keyed by a coarse lat/lng grid cell
+ * (about 10 km), so a user who stays in one region only pays for geocoding once. The cache is
+ * restored from and written back to a {@link Store} so it survives app launches.
+ */
+class GeocodeCache {
+
+    /**
+     * Performs the actual (blocking, often network backed) reverse geocode lookup.
+     */
+    interface Resolver {
+        String getCountryCode(double latitude, double longitude) throws IOException;
+    }
+
+    /**
+     * Persists the serialized cache between launches.
+     */
+    interface Store {
+        String read();
+
+        void write(String value);
+    }
+
+    private static final String ENTRY_SEPARATOR = "\n";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private final Resolver resolver;
+    private final Store store;
+    private final double cellSizeDegrees;
+    private final LinkedHashMap<String, String> entries;
+    private boolean loaded = false;
+
+    GeocodeCache(Resolver resolver, Store store) {
+        this(resolver, store, Constants.GEOCODE_CACHE_MAX_ENTRIES,
+                Constants.GEOCODE_CACHE_CELL_SIZE_DEGREES);
+    }
+
+    GeocodeCache(Resolver resolver, Store store, final int maxEntries, double cellSizeDegrees) {
+        this.resolver = resolver;
+        this.store = store;
+        this.cellSizeDegrees = cellSizeDegrees;
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the country code for the cell containing the given location, resolving and caching
+     * it on a miss. The lookup itself runs without holding the cache lock.
+     *
+     * @return the country code, or null if it could not be resolved
+     */
+    String getCountryCode(double latitude, double longitude) throws IOException {
+        String key = cellKey(latitude, longitude);
+        synchronized (this) {
+            loadIfNeeded();
+            String cached = entries.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String countryCode = resolver.getCountryCode(latitude, longitude);
+        if (countryCode == null || countryCode.length() == 0) {
+            return null;
+        }
+
+        String serialized;
+        synchronized (this) {
+            entries.put(key, countryCode);
+            serialized = serialize();
+        }
+        if (store != null) {
+            store.write(serialized);
+        }
+        return countryCode;
+    }
+
+    synchronized int size() {
+        loadIfNeeded();
+        return entries.size();
+    }
+
+    String cellKey(double latitude, double longitude) {
+        long latCell = (long) Math.floor(latitude / cellSizeDegrees);
+        long lngCell = (long) Math.floor(longitude / cellSizeDegrees);
+        return latCell + ":" + lngCell;
+    }
+
+    // entries are written eldest first, so restoring them keeps the LRU order
+    private String serialize() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            builder.append(entry.getKey()).append(FIELD_SEPARATOR)
+                    .append(entry.getValue()).append(ENTRY_SEPARATOR);
+        }
+        return builder.toString();
+    }
+
+    private void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        String serialized = store == null ? null : store.read();
+        if (serialized == null) {
+            return;
+        }
+        for (String line : serialized.split(ENTRY_SEPARATOR)) {
+            String[] fields = line.split(FIELD_SEPARATOR);
+            if (fields.length == 2 && fields[0].length() > 0 && fields[1].length() > 0) {
+                entries.put(fields[0], fields[1]);
+            }
+        }
+    }
+}
@@ -2,8 +2,10 @@ package com.mobilewalla.eventtracking.api;
 
 import com.mobilewalla.eventtracking.util.Utils;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import okhttp3.OkHttpClient;
 
 
 /**
@@ -15,7 +17,7 @@ import java.util.Map;
  */
 public class Mobilewalla {
 
-    static final Map<String, MobilewallaClient> instances = new HashMap<>();
+    static final ConcurrentMap<String, MobilewallaClient> instances = new ConcurrentHashMap<>();
 
     /**
      * Gets the default instance.
@@ -30,16 +32,35 @@ public class Mobilewalla {
      * Gets the specified instance. If instance is null or empty string, fetches the default
      * instance instead.
      *
+     * This is called on every logEvent, so the lookup is lock-free; two threads racing to create
+     * the same instance both construct a client (cheap, no worker threads yet) and the loser's
+     * copy is discarded.
+     *
      * @param instance name to get "ex app 1"
      * @return the specified instance
      */
-    public static synchronized MobilewallaClient getInstance(String instance) {
+    public static MobilewallaClient getInstance(String instance) {
         instance = Utils.normalizeInstanceName(instance);
         MobilewallaClient client = instances.get(instance);
         if (client == null) {
             client = new MobilewallaClient(instance);
-            instances.put(instance, client);
+            MobilewallaClient existing = instances.putIfAbsent(instance, client);
+            if (existing != null) {
+                client = existing;
+            }
         }
         return client;
     }
+
+    /**
+     * Sets the HTTP client shared by all instances that were not initialized with their own
+     * {@code Call.Factory}. By default the SDK builds one client with keep-alive, HTTP/2 and
+     * explicit timeouts. Pass a client derived from the app's own with {@code newBuilder()} to
+     * share its connection pool and TLS sessions. Call this before the first upload.
+     *
+     * @param client the shared client
+     */
+    public static void setHttpClient(OkHttpClient client) {
+        SharedHttpClient.set(client);
+    }
 }
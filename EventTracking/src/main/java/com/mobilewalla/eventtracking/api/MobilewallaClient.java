@@ -2,7 +2,6 @@ package com.mobilewalla.eventtracking.api;
 
 import static com.mobilewalla.eventtracking.api.Constants.API_PASSWORD;
 import static com.mobilewalla.eventtracking.api.Constants.JSON;
-import static com.mobilewalla.eventtracking.api.Constants.POST_AUTHENTICATE;
 import static com.mobilewalla.eventtracking.api.Constants.POST_EVENT;
 
 import android.app.Application;
@@ -10,10 +9,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Build;
-import android.util.Pair;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mobilewalla.eventtracking.util.DoubleCheck;
 import com.mobilewalla.eventtracking.util.Provider;
 import com.mobilewalla.eventtracking.util.Utils;
@@ -24,6 +25,9 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,14 +35,17 @@ import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import okhttp3.Call;
-import okhttp3.OkHttpClient;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import okhttp3.ResponseBody;
+import okio.Buffer;
 
 /**
  * <h1>MobilewallaClient</h1>
@@ -86,6 +93,18 @@ public class MobilewallaClient {
      * The pref/database key for the previous session ID value.
      */
     public static final String PREVIOUS_SESSION_ID_KEY = "previous_session_id";
+    /**
+     * The database key for the last bearer token.
+     */
+    public static final String BEARER_TOKEN_KEY = "bearer_token";
+    /**
+     * The database key for the expiry of the last bearer token.
+     */
+    public static final String BEARER_TOKEN_EXPIRY_KEY = "bearer_token_expiry";
+    /**
+     * The database key for the server url and username the last bearer token was issued for.
+     */
+    public static final String BEARER_TOKEN_SCOPE_KEY = "bearer_token_scope";
     /**
      * The class identifier tag used in logging. TAG = {@code "com.mobilewalla.eventtracking.api.MobilewallaClient";}
      */
@@ -93,9 +112,9 @@ public class MobilewallaClient {
     private static final MobilewallaLog logger = MobilewallaLog.getLogger();
     private static final ObjectMapper mapper = new ObjectMapper();
     /**
-     * The Android App Context.
+     * The Android App Context. Volatile so {@link #contextSet(String)} can be read lock-free.
      */
-    protected Context context;
+    protected volatile Context context;
     /**
      * The shared OkHTTPClient instance.
      */
@@ -134,9 +153,9 @@ public class MobilewallaClient {
     long lastEventTime = -1;
     long previousSessionId = -1;
     /**
-     * Whether or not the SDK is in the process of uploading events.
+     * The event id ranges of the upload batches currently in flight.
      */
-    AtomicBoolean uploadingCurrently = new AtomicBoolean(false);
+    final UploadWindow uploadWindow = new UploadWindow(Constants.EVENT_UPLOAD_CONCURRENCY);
     /**
      * The last SDK error - used for testing.
      */
@@ -148,17 +167,37 @@ public class MobilewallaClient {
     String serverUsername = Constants.API_USERNAME;
     String serverPassword = API_PASSWORD;
     /**
-     * The Bearer Token for authentication
+     * Holds the bearer token for the current credentials; reset when they change
+     */
+    private volatile AuthenticationManager authenticationManager = null;
+    /**
+     * The codecs upload bodies may be compressed with, most preferred first, and the one in use.
+     * A null codec sends bodies uncompressed, the default, since not every backend decodes them.
+     */
+    List<ContentCodec> uploadContentCodecs = Collections.emptyList();
+    volatile ContentCodec uploadContentCodec = null;
+    /**
+     * The formats upload bodies may be sent in, most preferred first, and the one in use.
+     */
+    List<WireFormat> uploadWireFormats = Collections.singletonList(WireFormats.JSON);
+    volatile WireFormat uploadWireFormat = WireFormats.JSON;
+    /**
+     * Whether uploads send the fields shared by a batch once, see {@link BatchEnvelope}.
+     */
+    private volatile boolean uploadBatchEnvelope = false;
+    /**
+     * The background event logging worker thread instance, created and started on first use.
      */
-    String bearerToken = null;
+    final Provider<WorkerThread> logThread = DoubleCheck.provider(() -> startWorkerThread("logThread"));
     /**
-     * The background event logging worker thread instance.
+     * The background event uploading worker thread instance, created and started when the
+     * first upload is due.
      */
-    WorkerThread logThread = new WorkerThread("logThread");
+    final Provider<WorkerThread> httpThread = DoubleCheck.provider(() -> startWorkerThread("httpThread"));
     /**
-     * The background event uploading worker thread instance.
+     * The event uploads queued or in flight, for {@link #cancelUploads()}.
      */
-    WorkerThread httpThread = new WorkerThread("httpThread");
+    private final Set<EventUpload> uploads = Collections.newSetFromMap(new ConcurrentHashMap<EventUpload, Boolean>());
     private boolean newDeviceIdPerInstall = false;
     private boolean useAdvertisingIdForDeviceId = false;
     private boolean optOut = false;
@@ -170,30 +209,59 @@ public class MobilewallaClient {
      */
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
+    private long eventUploadMaxBatchBytes = Constants.EVENT_UPLOAD_MAX_BATCH_BYTES;
+    private volatile long eventUploadTimeoutMillis = Constants.EVENT_UPLOAD_TIMEOUT_MILLIS;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
-    private boolean backoffUpload = false;
-    private int backoffUploadBatchSize = eventUploadMaxBatchSize;
+    /**
+     * Adapts the batch size to the payload size and latency of recent uploads.
+     */
+    final UploadBatchSizer uploadBatchSizer = new UploadBatchSizer(eventUploadMaxBatchSize);
+    /**
+     * Spaces out retries after failed uploads, and pauses uploads during an outage.
+     */
+    final UploadRetryPolicy uploadRetryPolicy = new UploadRetryPolicy();
+    /**
+     * Suspends uploads while offline, and flushes on reconnect.
+     */
+    final ConnectivityMonitor connectivityMonitor = new ConnectivityMonitor(this::onConnectivityChanged);
+    /**
+     * Stretches or compresses upload periods and batch sizes with the power state.
+     */
+    final PowerMonitor powerMonitor = new PowerMonitor(this::onPowerPolicyChanged);
+    /**
+     * Waiting for the events table to drain, see {@link #flushEvents(FlushListener)}. Only
+     * accessed on logThread.
+     */
+    private final List<FlushListener> flushListeners = new ArrayList<>();
     private boolean usingForegroundTracking = false;
     private boolean trackingSessionEvents = false;
     private boolean inForeground = false;
     private boolean flushEventsOnClose = true;
+    private boolean backgroundUploadEnabled = false;
+    private boolean warmUpOnForeground = true;
+    /**
+     * When a connection to the server was last opened or used, by a warm-up or an upload.
+     */
+    private volatile long lastConnectionMillis = -1;
     private String libraryName = Constants.LIBRARY;
     private String libraryVersion = Constants.VERSION;
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
     private SimpleDateFormat dateFormat;
 
     /**
-     * Instantiates a new default instance MobilewallaClient and starts worker threads.
+     * Instantiates a new default instance MobilewallaClient. Worker threads are started lazily.
      */
     public MobilewallaClient() {
         this(null);
     }
 
     /**
-     * Instantiates a new MobilewallaClient with instance name and starts worker threads.
+     * Instantiates a new MobilewallaClient with instance name. Worker threads are not created
+     * here, keeping the constructor cheap when called from {@code Application.onCreate}; the
+     * log thread starts with the first posted work and the http thread with the first upload.
      *
      * @param instance
      */
@@ -201,8 +269,12 @@ public class MobilewallaClient {
         this.instanceName = Utils.normalizeInstanceName(instance);
         dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSS");
         dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        logThread.start();
-        httpThread.start();
+    }
+
+    private static WorkerThread startWorkerThread(String name) {
+        WorkerThread thread = new WorkerThread(name);
+        thread.start();
+        return thread;
     }
 
     /**
@@ -302,7 +374,7 @@ public class MobilewallaClient {
             target.apply();
             source.edit().clear().apply();
 
-            logger.i(TAG, "Upgraded shared preferences from " + sourcePrefsName + " to " + prefsName);
+            logger.iFormat(TAG, "Upgraded shared preferences from %s to %s", sourcePrefsName, prefsName);
             return true;
 
         } catch (Exception e) {
@@ -468,17 +540,15 @@ public class MobilewallaClient {
                 // this try block is idempotent, so it's safe to retry initialize if failed
                 try {
                     if (callFactory == null) {
-                        // defer OkHttp client to first call
-                        final Provider<Call.Factory> callProvider
-                                = DoubleCheck.provider(OkHttpClient::new);
-                        this.callFactory = request -> callProvider.get().newCall(request);
+                        // defer OkHttp client to first call, shared by all instances
+                        this.callFactory = request -> SharedHttpClient.get().newCall(request);
                     } else {
                         this.callFactory = callFactory;
                     }
 
-                    deviceInfo = new DeviceInfo(context, this.locationListening);
-                    deviceId = initializeDeviceId();
+                    deviceInfo = new DeviceInfo(context, this.locationListening, dbHelper);
                     deviceInfo.prefetch();
+                    deviceId = initializeDeviceId();
 
                     if (userId != null) {
                         client.userId = userId;
@@ -489,6 +559,12 @@ public class MobilewallaClient {
                     final Long optOutLong = dbHelper.getLongValue(OPT_OUT_KEY);
                     optOut = optOutLong != null && optOutLong == 1;
 
+                    // reuse the last bearer token so the first upload skips authentication
+                    restoreBearerToken();
+
+                    connectivityMonitor.start(this.context);
+                    powerMonitor.start(this.context);
+
                     // try to restore previous session id
                     previousSessionId = getLongvalue(PREVIOUS_SESSION_ID_KEY, -1);
                     if (previousSessionId >= 0) {
@@ -511,9 +587,7 @@ public class MobilewallaClient {
 
                     initialized = true;
                 } catch (CursorWindowAllocationException e) {  // treat as uninitialized SDK
-                    logger.e(TAG, String.format(
-                            "Failed to initialize Mobilewalla SDK due to: %s", e.getMessage()
-                    ));
+                    logger.eFormat(TAG, "Failed to initialize Mobilewalla SDK due to: %s", e.getMessage());
                 }
             }
         });
@@ -623,17 +697,67 @@ public class MobilewallaClient {
 
     /**
      * Sets event upload max batch size. This controls the maximum number of events sent with
-     * each upload request.
+     * each upload request. Batches start at this size and shrink while uploads are rejected as
+     * too large, time out or respond slowly, see {@link #getUploadBatchStats()}.
      *
      * @param eventUploadMaxBatchSize the event upload max batch size
      * @return the MobilewallaClient
      */
     public MobilewallaClient setEventUploadMaxBatchSize(int eventUploadMaxBatchSize) {
         this.eventUploadMaxBatchSize = eventUploadMaxBatchSize;
-        this.backoffUploadBatchSize = eventUploadMaxBatchSize;
+        this.uploadBatchSizer.setMaxBatchSize(eventUploadMaxBatchSize);
         return this;
     }
 
+    /**
+     * Sets the maximum size of an upload batch in bytes of serialized events, before
+     * compression. Batches are cut at this size even if they hold fewer events than the max
+     * batch size; an event larger than this is sent in a batch of its own.
+     *
+     * @param eventUploadMaxBatchBytes the event upload max batch bytes
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setEventUploadMaxBatchBytes(long eventUploadMaxBatchBytes) {
+        this.eventUploadMaxBatchBytes = eventUploadMaxBatchBytes;
+        return this;
+    }
+
+    /**
+     * Sets how many upload batches may be in flight at once, from 1 to
+     * {@link Constants#EVENT_UPLOAD_MAX_CONCURRENCY}. Each batch covers a disjoint range of
+     * events, and is only deleted locally once the server acknowledged it. Higher values drain a
+     * large backlog faster on high latency connections.
+     *
+     * @param eventUploadConcurrency the number of concurrent upload batches
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setEventUploadConcurrency(int eventUploadConcurrency) {
+        uploadWindow.setConcurrency(Math.min(eventUploadConcurrency, Constants.EVENT_UPLOAD_MAX_CONCURRENCY));
+        return this;
+    }
+
+    /**
+     * Sets how long an upload request may take in total, from connecting to reading the
+     * response, before it is canceled and retried later as a smaller batch.
+     *
+     * @param eventUploadTimeoutMillis the timeout in milliseconds
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setEventUploadTimeoutMillis(long eventUploadTimeoutMillis) {
+        this.eventUploadTimeoutMillis = eventUploadTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Returns the current state of the adaptive upload batch sizing: the batch size in use and
+     * the payload size and latency it is based on.
+     *
+     * @return the upload batch stats
+     */
+    public UploadBatchStats getUploadBatchStats() {
+        return uploadBatchSizer.getStats();
+    }
+
     /**
      * Sets event max count. This is the maximum number of unsent events to keep on the device
      * (for example if the device does not have internet connectivity and cannot upload events).
@@ -680,6 +804,7 @@ public class MobilewallaClient {
      */
     public MobilewallaClient setServerUrl(String serverUrl) {
         url = serverUrl;
+        authenticationManager = null;
         return this;
     }
 
@@ -691,6 +816,7 @@ public class MobilewallaClient {
      */
     public MobilewallaClient setServerUsername(String username) {
         this.serverUsername = username;
+        this.authenticationManager = null;
         return this;
     }
 
@@ -702,17 +828,71 @@ public class MobilewallaClient {
      */
     public MobilewallaClient setServerPassword(String password) {
         this.serverPassword = password;
+        this.authenticationManager = null;
+        return this;
+    }
+
+    /**
+     * Sets the codecs event upload bodies may be compressed with, most preferred first. The
+     * first one is used until the server rejects it with a 415 response, after which the SDK
+     * switches to the first codec listed in the response's {@code Accept-Encoding} header, or
+     * to uncompressed bodies. Bodies are uncompressed by default; only enable a codec the
+     * server is known to decode, since a server that can't may answer with a generic 400 or 500
+     * error instead of a 415, which is retried as is.
+     *
+     * @param codecs the codecs, e.g. {@link ContentCodecs#GZIP}
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setUploadContentCodecs(ContentCodec... codecs) {
+        List<ContentCodec> preferred = codecs == null ? Collections.<ContentCodec>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(Arrays.asList(codecs)));
+        this.uploadContentCodecs = preferred;
+        this.uploadContentCodec = preferred.isEmpty() ? null : preferred.get(0);
+        return this;
+    }
+
+    /**
+     * Sets the formats event upload bodies may be sent in, most preferred first. The first one is
+     * used until the server rejects it with a 415 response, after which the SDK switches to the
+     * first format listed in the response's {@code Accept-Post} header, or to JSON. JSON is used
+     * by default.
+     *
+     * @param formats the formats, e.g. {@link WireFormats#CBOR}
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setUploadWireFormats(WireFormat... formats) {
+        List<WireFormat> preferred = formats == null || formats.length == 0
+                ? Collections.singletonList(WireFormats.JSON)
+                : Collections.unmodifiableList(new ArrayList<>(Arrays.asList(formats)));
+        this.uploadWireFormats = preferred;
+        this.uploadWireFormat = preferred.get(0);
+        return this;
+    }
+
+    /**
+     * Enable/disable the enveloped upload format (disabled by default). Device, user and library
+     * fields shared by the events of a batch, and the upload time, are then sent once in a batch
+     * header instead of on every event. Only enable this if the server accepts that format.
+     *
+     * @param uploadBatchEnvelope whether to send shared fields in a batch header
+     * @return the MobilewallaClient
+     * @see BatchEnvelope
+     */
+    public MobilewallaClient setUploadBatchEnvelope(boolean uploadBatchEnvelope) {
+        this.uploadBatchEnvelope = uploadBatchEnvelope;
         return this;
     }
 
     /**
-     * Set Bearer Token to be included in request header.
+     * Set Bearer Token to be included in request header. The token is shared with every client
+     * using the same server url, username and password.
      *
      * @param token
      * @return the MobilewallaClient
      */
     public MobilewallaClient setBearerToken(String token) {
-        this.bearerToken = token;
+        getAuthenticationManager().setToken(Utils.isEmptyString(token)
+                ? null : new AuthToken(token, AuthToken.parseJwtExpiry(token)));
         return this;
     }
 
@@ -775,6 +955,9 @@ public class MobilewallaClient {
         runOnLogThread(() -> {
             client.optOut = optOut;
             dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
+            if (optOut) {
+                cancelUploads();
+            }
         });
         return this;
     }
@@ -862,6 +1045,36 @@ public class MobilewallaClient {
         return this;
     }
 
+    /**
+     * Enable/disable uploading unsent events with a background job once the app leaves the
+     * foreground (disabled by default, requires Android 5.0 and foreground tracking). The job
+     * waits for a network and keeps retrying until the events are sent, so events logged right
+     * before the process is killed don't wait for the next launch. For the job to upload after
+     * the process was killed, initialize the client in {@code Application.onCreate()}.
+     *
+     * @param backgroundUploadEnabled whether to upload unsent events in the background
+     * @return the MobilewallaClient
+     * @see UploadJobService
+     */
+    public MobilewallaClient enableBackgroundUpload(boolean backgroundUploadEnabled) {
+        this.backgroundUploadEnabled = backgroundUploadEnabled;
+        return this;
+    }
+
+    /**
+     * Enable/disable warming up the connection to the server when the app enters the foreground
+     * (enabled by default, requires foreground tracking). The host is resolved and a connection
+     * opened ahead of the first upload, so it doesn't wait on DNS, TCP and TLS. This is skipped
+     * while a previous warm-up connection is still likely to be pooled.
+     *
+     * @param warmUpOnForeground whether to warm up the connection on foreground
+     * @return the MobilewallaClient
+     */
+    public MobilewallaClient setWarmUpOnForeground(boolean warmUpOnForeground) {
+        this.warmUpOnForeground = warmUpOnForeground;
+        return this;
+    }
+
     /**
      * Track session events mobilewalla client. If enabled then the SDK will automatically send
      * start and end session events to mark the start and end of the user's sessions.
@@ -1168,7 +1381,7 @@ public class MobilewallaClient {
     public long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
                          JSONObject userProperties, JSONObject groups, JSONObject groupProperties,
                          long timestamp, boolean outOfSession) {
-        logger.d(TAG, "Logged event to Mobilewalla: " + eventType);
+        logger.dFormat(TAG, "Logged event to Mobilewalla: %s", eventType);
 
         if (optOut) {
             return -1;
@@ -1261,9 +1474,7 @@ public class MobilewallaClient {
             event.put("groupProperties", truncate(groupProperties));
             result = saveEvent(eventType, event);
         } catch (JSONException e) {
-            logger.e(TAG, String.format(
-                    "JSON Serialization of event type %s failed, skipping: %s", eventType, e.toString()
-            ));
+            logger.eFormat(TAG, "JSON Serialization of event type %s failed, skipping: %s", eventType, e);
         }
 
         return result;
@@ -1279,9 +1490,7 @@ public class MobilewallaClient {
     protected long saveEvent(String eventType, JSONObject event) {
         String eventString = event.toString();
         if (Utils.isEmptyString(eventString)) {
-            logger.e(TAG, String.format(
-                    "Detected empty event string for event type %s, skipping", eventType
-            ));
+            logger.eFormat(TAG, "Detected empty event string for event type %s, skipping", eventType);
             return -1;
         }
 
@@ -1301,7 +1510,7 @@ public class MobilewallaClient {
                 totalEventCount >= eventUploadThreshold) {
             updateServer();
         } else {
-            updateServerLater(eventUploadPeriodMillis);
+            updateServerLater(getEventUploadPeriodMillis());
         }
 
         return lastEventId;
@@ -1472,6 +1681,9 @@ public class MobilewallaClient {
             if (flushEventsOnClose) {
                 updateServer();
             }
+            if (backgroundUploadEnabled && Build.VERSION.SDK_INT >= 21 && dbHelper.getEventCount() > 0) {
+                UploadJobService.schedule(context, instanceName, Constants.UPLOAD_JOB_BACKOFF_MILLIS);
+            }
 
             // re-persist metadata into database for good measure
             dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
@@ -1488,9 +1700,14 @@ public class MobilewallaClient {
      * @param timestamp the timestamp
      */
     void onEnterForeground(final long timestamp) {
+        // permissions may have been granted while the app was in the background
+        Utils.invalidatePermissionCache();
         runOnLogThread(() -> {
             startNewSessionIfNeeded(timestamp);
             inForeground = true;
+            if (warmUpOnForeground) {
+                warmUpConnection();
+            }
         });
     }
 
@@ -1525,7 +1742,7 @@ public class MobilewallaClient {
                     object.put(key, truncate((JSONArray) value));
                 }
             } catch (JSONException e) {
-                logger.e(TAG, e.toString());
+                logger.e(TAG, e::toString);
             }
         }
 
@@ -1639,7 +1856,44 @@ public class MobilewallaClient {
             return;
         }
 
-        logThread.post(this::updateServer);
+        logThread.get().post(this::updateServer);
+    }
+
+    /**
+     * Internal method to handle network changes: uploads larger batches more often while on an
+     * unmetered network, and flushes events on reconnect.
+     */
+    void onConnectivityChanged(boolean connected, boolean unmetered) {
+        updateUploadBatchScale();
+        if (connected) {
+            // queued behind initialization, which starts the monitor
+            logThread.get().post(this::updateServer);
+        }
+    }
+
+    /**
+     * Internal method to handle power changes. Flushes events when the charger is connected,
+     * since uploads are cheapest then.
+     */
+    void onPowerPolicyChanged(UploadPowerPolicy policy) {
+        updateUploadBatchScale();
+        if (powerMonitor.isCharging()) {
+            logThread.get().post(this::updateServer);
+        }
+    }
+
+    private void updateUploadBatchScale() {
+        int scale = powerMonitor.getPolicy().getBatchScale();
+        if (connectivityMonitor.isUnmetered()) {
+            scale *= Constants.UNMETERED_UPLOAD_SCALE;
+        }
+        uploadBatchSizer.setScale(scale);
+    }
+
+    private long getEventUploadPeriodMillis() {
+        long periodMillis = powerMonitor.getPolicy().scalePeriod(eventUploadPeriodMillis);
+        return connectivityMonitor.isUnmetered()
+                ? periodMillis / Constants.UNMETERED_UPLOAD_SCALE : periodMillis;
     }
 
     private void updateServerLater(long delayMillis) {
@@ -1647,209 +1901,504 @@ public class MobilewallaClient {
             return;
         }
 
-        logThread.postDelayed(() -> {
+        logThread.get().postDelayed(() -> {
             updateScheduled.set(false);
             updateServer();
         }, delayMillis);
     }
 
     /**
-     * Internal method to upload unsent events.
+     * Internal method to upload unsent events. Starts new batches until the upload window is
+     * full or every event is in flight, sized by {@link #uploadBatchSizer}. After failed uploads
+     * this defers to {@link #uploadRetryPolicy} and reschedules itself for when a retry is due.
+     * Nothing is uploaded without a network; {@link #connectivityMonitor} calls this again on
+     * reconnect. <b>Note: </b> always call this on logThread
      */
     protected void updateServer() {
-        updateServer(false);
+        if (optOut || offline || !connectivityMonitor.isConnected() || !uploadWindow.hasCapacity()) {
+            return;
+        }
+
+        long totalEventCount = dbHelper.getTotalEventCount();
+        long batchSize = Math.min(uploadBatchSizer.getBatchSize(), totalEventCount);
+
+        if (batchSize <= 0) {
+            return;
+        }
+
+        try {
+            while (uploadWindow.hasCapacity()) {
+                long[] batch = getNextBatch(batchSize);
+                if (batch == null) {
+                    return;
+                }
+
+                final UploadWindow.Range range = uploadWindow.acquire(batch[0], batch[1]);
+                if (range == null) {
+                    return;
+                }
+                long retryDelayMillis = uploadRetryPolicy.reserveAttempt(getCurrentTimeMillis());
+                if (retryDelayMillis != 0) {
+                    uploadWindow.release(range);
+                    if (retryDelayMillis > 0) {
+                        updateServerLater(retryDelayMillis);
+                    }
+                    return;
+                }
+                final int eventCount = (int) batch[2];
+                // formatted here, since dateFormat is confined to logThread
+                final String serverUploadTime = dateFormat.format(new Date());
+                makeEventUploadPostRequest(callFactory, eventCount, range, serverUploadTime);
+            }
+        } catch (CursorWindowAllocationException e) {
+            // handle CursorWindowAllocationException when fetching events, defer upload
+            logger.eFormat(TAG,
+                    "Caught Cursor window exception during event upload, deferring upload: %s",
+                    e.getMessage()
+            );
+        }
     }
 
     /**
-     * Internal method to upload unsent events. Limit controls whether to use event upload max
-     * batch size or backoff upload batch size. <b>Note: </b> always call this on logThread
+     * Internal method to pick the oldest events that are not already in flight, up to the batch
+     * size and {@link #eventUploadMaxBatchBytes}. The batch is taken from a single gap between
+     * in-flight ranges, so its own range is disjoint from them. The events themselves are only
+     * read when the batch is uploaded.
      *
-     * @param limit the limit
+     * @return the ids of the first and last event and the number of events, or null if there
+     * are none
      */
-    protected void updateServer(boolean limit) {
-        if (optOut || offline) {
-            return;
+    private long[] getNextBatch(long batchSize) {
+        for (long[] interval : uploadWindow.getFreeIntervals()) {
+            long upToId = lastEventId < 0 ? interval[1] : Math.min(interval[1], lastEventId);
+            if (upToId <= interval[0]) {
+                break;
+            }
+            long[] batch = dbHelper.getEventRange(interval[0], upToId, batchSize, eventUploadMaxBatchBytes);
+            if (batch != null) {
+                return batch;
+            }
         }
+        return null;
+    }
 
-        // if returning out of this block, always be sure to set uploadingCurrently to false!!
-        if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
-            long batchSize = Math.min(
-                    limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
-                    totalEventCount
-            );
+    /**
+     * Internal method to create the body for a batch of events. JSON batches are streamed from the
+     * database as they are sent, with the stored events copied as is. Enveloped batches and other
+     * formats need the whole batch, so parse the events and are encoded up front.
+     */
+    private RequestBody createEventRequestBody(WireFormat format, UploadWindow.Range range,
+                                               String serverUploadTime) throws IOException {
+        if (!uploadBatchEnvelope && format == WireFormats.JSON) {
+            return new EventStreamRequestBody(dbHelper::readEvents, range, serverUploadTime);
+        }
+        List<ObjectNode> events = readEventTrees(range);
+        ObjectNode batch;
+        if (uploadBatchEnvelope) {
+            batch = BatchEnvelope.wrap(events, serverUploadTime);
+        } else {
+            for (ObjectNode event : events) {
+                event.put("serverUploadTime", serverUploadTime);
+            }
+            batch = mapper.createObjectNode();
+            batch.putArray("events").addAll(events);
+        }
+        Buffer encoded = new Buffer();
+        try (JsonParser tokens = mapper.treeAsTokens(batch)) {
+            format.write(tokens, encoded);
+        }
+        return RequestBody.create(MediaType.parse(format.getContentType()), encoded.readByteString());
+    }
 
-            if (batchSize <= 0) {
-                uploadingCurrently.set(false);
+    /**
+     * Internal method to parse the events of a batch, with their ids. Unreadable events are
+     * skipped, as in {@link EventStreamRequestBody}.
+     */
+    private List<ObjectNode> readEventTrees(UploadWindow.Range range) {
+        final List<ObjectNode> events = new ArrayList<>();
+        dbHelper.readEvents(range.minId - 1, range.maxId, -1, (eventId, event) -> {
+            if (Utils.isEmptyString(event)) {
                 return;
             }
-
             try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-
-                final Pair<Long, JSONArray> merged = getEventsWithMaxId(events, batchSize);
-                if (events.size() == 0) {
-                    uploadingCurrently.set(false);
+                JsonNode tree = mapper.readTree(event);
+                if (tree instanceof ObjectNode) {
+                    ((ObjectNode) tree).put("eventId", eventId);
+                    events.add((ObjectNode) tree);
                     return;
                 }
-                JSONObject eventWrapper = new JSONObject();
-                eventWrapper.put("events", merged.second);
-                httpThread.post(() -> makeEventUploadPostRequest(callFactory, eventWrapper, merged.first));
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, e.toString());
-            } catch (CursorWindowAllocationException e) {
-                // handle CursorWindowAllocationException when fetching events, defer upload
-                uploadingCurrently.set(false);
-                logger.e(TAG, String.format(
-                        "Caught Cursor window exception during event upload, deferring upload: %s",
-                        e.getMessage()
-                ));
+            } catch (JsonProcessingException e) {
+                // logged below
             }
-        }
+            logger.eFormat(TAG, "Skipping unreadable event %d", eventId);
+        });
+        return events;
     }
 
     /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
+     * Internal method to queue a batch of events for upload on httpThread. The request is sent
+     * asynchronously, so one thread keeps any number of batches in flight, and the response is
+     * handled on logThread. <b>Note: </b> always call this on logThread
      *
-     * @param events    the events
-     * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
+     * @param client           the client
+     * @param eventCount       the number of events
+     * @param range            the ids of the events, released from the upload window when done
+     * @param serverUploadTime the upload time stamped on the events
      */
-    protected Pair<Long, JSONArray> getEventsWithMaxId(List<JSONObject> events, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
-        long maxEventId = -1;
-        int count = 0;
+    protected void makeEventUploadPostRequest(Call.Factory client, final int eventCount,
+                                              final UploadWindow.Range range, final String serverUploadTime) {
+        new EventUpload(uploadHost, client, eventCount, range, serverUploadTime).enqueue();
+    }
 
-        while (count < numEvents) {
-            JSONObject event = events.get(count++);
-            event.put("serverUploadTime", dateFormat.format(new Date()));
-            maxEventId = event.getLong("eventId");
-            merged.put(event);
+    /**
+     * Cancels the event uploads queued or in flight. Their events stay unsent and are uploaded again later.
+     */
+    public void cancelUploads() {
+        for (EventUpload upload : uploads) {
+            upload.cancel();
         }
-
-        return new Pair<>(maxEventId, merged);
     }
 
     /**
-     * Internal method to generate the event upload post request.
-     *
-     * @param client     the client
-     * @param events     the events
-     * @param maxEventId the max event id
+     * Connects {@link EventUpload} to this client.
      */
-    protected void makeEventUploadPostRequest(Call.Factory client, JSONObject events, final long maxEventId) {
-        Request authenticateRequest;
-        Request.Builder eventRequestBuilder;
-        try {
-            ApiRequest authenticateReq = new ApiRequest(this.serverUsername, this.serverPassword);
-            RequestBody authenticateRequestBody = RequestBody.create(JSON, mapper.writeValueAsString(authenticateReq));
-            Request.Builder authenticateRequestBuilder = new Request.Builder()
-                    .url(url + POST_AUTHENTICATE)
-                    .post(authenticateRequestBody);
-
-            RequestBody eventRequestBody = RequestBody.create(JSON, events.toString());
-            eventRequestBuilder = new Request.Builder()
-                    .url(url + POST_EVENT)
-                    .post(eventRequestBody);
-
-            authenticateRequest = authenticateRequestBuilder.build();
-        } catch (IllegalArgumentException | JsonProcessingException e) {
-            logger.e(TAG, e.toString());
-            uploadingCurrently.set(false);
-            return;
+    private final EventUpload.Host uploadHost = new EventUpload.Host() {
+        @Override
+        public long getCurrentTimeMillis() {
+            return MobilewallaClient.this.getCurrentTimeMillis();
         }
 
-        boolean uploadSuccess = false;
+        @Override
+        public void runOnLogThread(Runnable task) {
+            logThread.get().post(task);
+        }
 
-        try {
-            if (Utils.isEmptyString(bearerToken)) {
-                postAuthenticateRequest(client, authenticateRequest);
+        @Override
+        public void runOnHttpThread(Runnable task) {
+            httpThread.get().post(task);
+        }
+
+        @Override
+        public UploadWindow getUploadWindow() {
+            return uploadWindow;
+        }
+
+        @Override
+        public UploadRetryPolicy getUploadRetryPolicy() {
+            return uploadRetryPolicy;
+        }
+
+        @Override
+        public UploadBatchSizer getUploadBatchSizer() {
+            return uploadBatchSizer;
+        }
+
+        @Override
+        public ContentCodec getUploadContentCodec() {
+            return uploadContentCodec;
+        }
+
+        @Override
+        public WireFormat getUploadWireFormat() {
+            return uploadWireFormat;
+        }
+
+        @Override
+        public String getEventUploadUrl() {
+            return url + POST_EVENT;
+        }
+
+        @Override
+        public long getEventUploadTimeoutMillis() {
+            return eventUploadTimeoutMillis;
+        }
+
+        @Override
+        public RequestBody createEventRequestBody(WireFormat format, UploadWindow.Range range,
+                                                  String serverUploadTime) throws IOException {
+            return MobilewallaClient.this.createEventRequestBody(format, range, serverUploadTime);
+        }
+
+        @Override
+        public void getBearerToken(Call.Factory client, AuthenticationManager.TokenCallback callback) {
+            MobilewallaClient.this.getBearerToken(client, callback);
+        }
+
+        @Override
+        public void reauthenticate(Call.Factory client, AuthToken stale,
+                                   AuthenticationManager.TokenCallback callback) {
+            MobilewallaClient.this.reauthenticate(client, stale, callback);
+        }
+
+        @Override
+        public boolean renegotiateUploadFormat(ContentCodec codec, WireFormat format, Headers headers) {
+            return MobilewallaClient.this.renegotiateUploadFormat(codec, format, headers);
+        }
+
+        @Override
+        public void removeUploadedEvents(UploadWindow.Range range, UploadAcknowledgement ack) {
+            lastConnectionMillis = getCurrentTimeMillis();
+            if (ack == null) {
+                dbHelper.removeEvents(range.minId, range.maxId);
+                return;
+            }
+            List<Long> rejected = ack.getRejectedWithin(range);
+            dbHelper.removeEvents(ack.getAcceptedWithin(range));
+            if (!rejected.isEmpty()) {
+                logger.wFormat(TAG, "Server rejected %d of %d events, quarantining them: %s",
+                        rejected.size(), range.maxId - range.minId + 1, ack.getMessage());
+                quarantineEvents(rejected, ack.getMessage());
             }
+            // what's left was skipped; count it so an event the server never answers for
+            // doesn't go out with every batch forever
+            List<Long> unacknowledged = dbHelper.countUnacknowledgedAttempt(range.minId, range.maxId,
+                    Constants.UPLOAD_MAX_UNACKNOWLEDGED_ATTEMPTS);
+            if (!unacknowledged.isEmpty()) {
+                logger.wFormat(TAG, "Server left %d events unacknowledged %d times, quarantining them",
+                        unacknowledged.size(), Constants.UPLOAD_MAX_UNACKNOWLEDGED_ATTEMPTS);
+                quarantineEvents(unacknowledged, "Not acknowledged");
+            }
+        }
 
-            if (!Utils.isEmptyString(bearerToken)) {
-                eventRequestBuilder.addHeader("Authorization", bearerToken);
-                Request eventRequest = eventRequestBuilder.build();
-                Response eventResponse = client.newCall(eventRequest).execute();
-                if (eventResponse.code() == 200) {
-                    logger.d(TAG, "Successfully posted an events to API server");
-                    uploadSuccess = true;
-                    logThread.post(() -> {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
-                            logThread.post(() -> updateServer(backoffUpload));
-                        } else {
-                            backoffUpload = false;
-                            backoffUploadBatchSize = eventUploadMaxBatchSize;
-                        }
-                    });
-                } else if (eventResponse.code() == 401) {
-                    boolean isAuthenticated = postAuthenticateRequest(client, authenticateRequest);
-                    if (isAuthenticated) {
-                        makeEventUploadPostRequest(client, events, maxEventId);
-                    }
-                } else if (eventResponse.code() == 413) {
-                    // If blocked by one massive event, drop it
-                    if (backoffUpload && backoffUploadBatchSize == 1) {
-                        if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                        // maybe we want to reset backoffUploadBatchSize after dropping massive event
-                    }
+        @Override
+        public void quarantineEvents(List<Long> eventIds, String reason) {
+            dbHelper.quarantineEvents(eventIds, reason, getCurrentTimeMillis());
+        }
 
-                    // Server complained about length of request, backoff and try again
-                    backoffUpload = true;
-                    int numEvents = Math.min((int) dbHelper.getEventCount(), backoffUploadBatchSize);
-                    backoffUploadBatchSize = (int) Math.ceil(numEvents / 2.0);
-                    logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
-                    logThread.post(() -> {
-                        uploadingCurrently.set(false);
-                        updateServer(true);
-                    });
-                } else {
-                    logger.w(TAG, "Upload failed, " + eventResponse.code() + ", will attempt to reupload later");
+        @Override
+        public void onUploadError(Throwable error) {
+            lastError = error;
+        }
+
+        @Override
+        public void onUploadQueued(EventUpload upload) {
+            uploads.add(upload);
+        }
+
+        @Override
+        public void onUploadFinished(EventUpload upload, boolean succeeded) {
+            uploads.remove(upload);
+            runOnLogThread(() -> {
+                if (succeeded && (dbHelper.getTotalEventCount() > eventUploadThreshold || !flushListeners.isEmpty())) {
+                    updateServer();
                 }
+                checkFlushed();
+            });
+        }
+
+        @Override
+        public void onUploadRetry(long delayMillis) {
+            if (uploadRetryPolicy.isOpen()) {
+                logger.wFormat(TAG, "%d consecutive upload failures, pausing uploads for %d ms",
+                        uploadRetryPolicy.getConsecutiveFailures(), delayMillis);
             }
-        } catch (java.net.ConnectException e) {
-            logger.w(TAG, "No internet connection found, unable to upload events");
-            lastError = e;
-        } catch (java.net.UnknownHostException e) {
-            logger.w(TAG, "No internet connection found, unable to upload events");
-            lastError = e;
-        } catch (IOException e) {
-            logger.e(TAG, e.toString());
-            lastError = e;
-        } catch (AssertionError e) {
-            // This can be caused by a NoSuchAlgorithmException thrown by DefaultHttpClient
-            logger.e(TAG, "Exception:", e);
-            lastError = e;
-        } catch (Exception e) {
-            // Just log any other exception so things don't crash on upload
-            logger.e(TAG, "Exception:", e);
-            lastError = e;
+            updateServerLater(delayMillis);
+        }
+    };
+
+    /**
+     * Internal method to fall back to a body the server accepts after a 415 response. The wire
+     * format is dropped if the response lists other formats in {@code Accept-Post}, otherwise
+     * the compression, and finally the wire format in favour of JSON.
+     *
+     * @return whether the upload should be retried
+     */
+    private boolean renegotiateUploadFormat(ContentCodec codec, WireFormat format, Headers headers) {
+        String acceptPost = headers.get("Accept-Post");
+        boolean formatRejected = acceptPost != null && !WireFormats.isAccepted(format, acceptPost);
+        if (format != WireFormats.JSON && (formatRejected || codec == null)) {
+            // Server can't decode this Content-Type, fall back to what it accepts
+            WireFormat accepted = WireFormats.negotiate(uploadWireFormats, acceptPost);
+            uploadWireFormat = accepted == format ? WireFormats.JSON : accepted;
+            logger.wFormat(TAG, "Server rejected %s upload format, switching to %s",
+                    format.getContentType(), uploadWireFormat.getContentType());
+            return true;
+        } else if (codec != null) {
+            // Server can't decode this Content-Encoding, fall back to what it accepts
+            ContentCodec accepted = ContentCodecs.negotiate(
+                    uploadContentCodecs, headers.get("Accept-Encoding"));
+            uploadContentCodec = accepted == codec ? null : accepted;
+            logger.wFormat(TAG, "Server rejected %s upload encoding, switching to %s",
+                    codec.getEncoding(),
+                    uploadContentCodec == null ? "identity" : uploadContentCodec.getEncoding());
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Callback for {@link #flushEvents(FlushListener)}.
+     */
+    interface FlushListener {
+        /**
+         * Called on logThread once no batch is in flight.
+         *
+         * @param complete whether every unsent event was uploaded
+         */
+        void onFlushed(boolean complete);
+    }
+
+    /**
+     * Internal method to upload every unsent event now, batch after batch, regardless of the
+     * upload threshold. The listener is told once uploading stops, either because the events
+     * table is empty or because uploads are failing, offline or paused.
+     */
+    void flushEvents(final FlushListener listener) {
+        runOnLogThread(() -> {
+            flushListeners.add(listener);
+            if (initialized) {
+                updateServer();
+            }
+            checkFlushed();
+        });
+    }
 
-        if (!uploadSuccess) {
-            uploadingCurrently.set(false);
+    /**
+     * Internal method to notify flush listeners once no batch is in flight, as nothing else
+     * will start one. <b>Note: </b> call this on logThread
+     */
+    private void checkFlushed() {
+        if (flushListeners.isEmpty() || uploadWindow.size() > 0) {
+            return;
+        }
+        boolean complete = initialized && dbHelper.getEventCount() == 0;
+        List<FlushListener> listeners = new ArrayList<>(flushListeners);
+        flushListeners.clear();
+        for (FlushListener listener : listeners) {
+            listener.onFlushed(complete);
         }
     }
 
-    private boolean postAuthenticateRequest(Call.Factory client, Request authenticateRequest) throws IOException {
-        Response authenticateResponse = client.newCall(authenticateRequest).execute();
-        ResponseBody response = authenticateResponse.body();
+    /**
+     * Internal method to open a connection to the server ahead of the first upload, so its
+     * DNS lookup and TLS handshake are off the upload's critical path and the pooled
+     * connection is reused. The shared client also caches the resolved addresses. Any response
+     * will do, the request only needs to reach the server, so it is sent asynchronously and
+     * nothing waits on it. <b>Note: </b> call this on logThread
+     */
+    void warmUpConnection() {
+        if (optOut || offline || !connectivityMonitor.isConnected()) {
+            return;
+        }
+        long now = getCurrentTimeMillis();
+        if (lastConnectionMillis >= 0 && now - lastConnectionMillis < Constants.HTTP_KEEP_ALIVE_MILLIS) {
+            return; // the connection is likely still pooled
+        }
+        lastConnectionMillis = now;
         try {
-            ApiResponse authenticateApiResponse = mapper.readValue(response.string(), ApiResponse.class);
-            if (authenticateResponse.code() == 200) {
-                bearerToken = authenticateApiResponse.getToken();
-                logger.d(TAG, "Successfully called an authenticate API");
-                return true;
-            } else {
-                logger.e(TAG, "Error in calling authenticate API : " + authenticateApiResponse.getMessage());
+            Request request = new Request.Builder().url(url).head().build();
+            callFactory.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    response.close();
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    logger.dFormat(TAG, "Connection warm-up failed: %s", e);
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.dFormat(TAG, "Connection warm-up failed: %s", e);
+        }
+    }
+
+    AuthenticationManager getAuthenticationManager() {
+        AuthenticationManager manager = authenticationManager;
+        if (manager == null) {
+            manager = AuthenticationManager.forCredentials(url, serverUsername, serverPassword);
+            authenticationManager = manager;
+        }
+        return manager;
+    }
+
+    /**
+     * Passes the shared bearer token to the callback, authenticating first if there is none or
+     * it is about to expire.
+     */
+    private void getBearerToken(Call.Factory client, final AuthenticationManager.TokenCallback callback) {
+        AuthenticationManager manager = getAuthenticationManager();
+        final AuthToken current = manager.getToken();
+        manager.getValidToken(client, getCurrentTimeMillis(), (token, error) -> {
+            if (token != null && token != current) {
+                onBearerTokenIssued(token);
             }
-        } catch (Exception e) {
-            logger.e(TAG, "Error in calling authenticate API");
+            callback.onToken(token, error);
+        });
+    }
+
+    /**
+     * Replaces a token the server rejected. Concurrent callers with the same stale token share
+     * one authentication request.
+     */
+    private void reauthenticate(Call.Factory client, final AuthToken stale,
+                                final AuthenticationManager.TokenCallback callback) {
+        getAuthenticationManager().authenticate(client, stale, getCurrentTimeMillis(), (token, error) -> {
+            if (token != null && token != stale) {
+                onBearerTokenIssued(token);
+            }
+            callback.onToken(token, error);
+        });
+    }
+
+    private void onBearerTokenIssued(AuthToken token) {
+        saveBearerToken(token);
+        scheduleBearerTokenRefresh(token);
+    }
+
+    private String getBearerTokenScope() {
+        return url + " " + serverUsername;
+    }
+
+    /**
+     * Internal method to load the persisted bearer token, if it was issued for the current
+     * server url and username and is not about to expire. <b>Note: </b> call this on logThread
+     */
+    void restoreBearerToken() {
+        String token = dbHelper.getValue(BEARER_TOKEN_KEY);
+        if (Utils.isEmptyString(token) || !getBearerTokenScope().equals(dbHelper.getValue(BEARER_TOKEN_SCOPE_KEY))) {
+            return;
         }
-        return false;
+        AuthToken restored = new AuthToken(token, getLongvalue(BEARER_TOKEN_EXPIRY_KEY, -1));
+        if (restored.expiresWithin(getCurrentTimeMillis(), Constants.AUTH_TOKEN_EXPIRY_SKEW_MILLIS)) {
+            return;
+        }
+        // keeps a token set with setBearerToken() or shared by another instance
+        AuthenticationManager manager = getAuthenticationManager();
+        manager.restoreToken(restored);
+        if (manager.getToken() == restored) {
+            scheduleBearerTokenRefresh(restored);
+        }
+    }
+
+    private void saveBearerToken(AuthToken token) {
+        dbHelper.insertOrReplaceKeyValue(BEARER_TOKEN_KEY, token.value);
+        dbHelper.insertOrReplaceKeyValue(BEARER_TOKEN_SCOPE_KEY, getBearerTokenScope());
+        dbHelper.insertOrReplaceKeyLongValue(BEARER_TOKEN_EXPIRY_KEY, token.expiresAtMillis);
+    }
+
+    /**
+     * Re-authenticates in the background shortly before the token expires, so uploads never
+     * wait on authentication. Does nothing if the expiry is unknown or the token was replaced
+     * by the time the refresh is due; clients sharing the token share the refresh request too.
+     * The request is asynchronous, so the timer runs on logThread and doesn't start httpThread.
+     */
+    private void scheduleBearerTokenRefresh(final AuthToken token) {
+        if (token.expiresAtMillis < 0) {
+            return;
+        }
+        long delayMillis = Math.max(0, token.expiresAtMillis
+                - Constants.AUTH_TOKEN_REFRESH_MARGIN_MILLIS - getCurrentTimeMillis());
+        logThread.get().postDelayed(() -> {
+            if (getAuthenticationManager().getToken() != token) {
+                return;
+            }
+            reauthenticate(callFactory, token, (fresh, error) -> {
+                if (error != null) {
+                    logger.wFormat(TAG, "Proactive token refresh failed, will authenticate on next upload: %s", error);
+                }
+            });
+        }, delayMillis);
     }
 
     /**
@@ -1905,11 +2454,13 @@ public class MobilewallaClient {
             return deviceId;
         }
 
-        if (!newDeviceIdPerInstall && useAdvertisingIdForDeviceId && !deviceInfo.isLimitAdTrackingEnabled()) {
+        if (!newDeviceIdPerInstall && useAdvertisingIdForDeviceId) {
             // Android ID is deprecated by Google.
-            // We are required to use Advertising ID, and respect the advertising ID preference
+            // We are required to use Advertising ID, and respect the advertising ID preference.
+            // A placeholder or stale snapshot would permanently pin the wrong id, so wait for
+            // the live lookup here.
 
-            String advertisingId = deviceInfo.getAdvertisingId();
+            String advertisingId = deviceInfo.awaitAdvertisingId();
             if (!(Utils.isEmptyString(advertisingId) || invalidIds.contains(advertisingId))) {
                 saveDeviceId(advertisingId);
                 return advertisingId;
@@ -1928,8 +2479,9 @@ public class MobilewallaClient {
     }
 
     protected void runOnLogThread(Runnable r) {
-        if (Thread.currentThread() != logThread) {
-            logThread.post(r);
+        WorkerThread thread = logThread.get();
+        if (Thread.currentThread() != thread) {
+            thread.post(r);
         } else {
             r.run();
         }
@@ -1951,9 +2503,9 @@ public class MobilewallaClient {
      * @param methodName the parent method name to print in error message
      * @return whether application context is set
      */
-    protected synchronized boolean contextSet(String methodName) {
+    protected boolean contextSet(String methodName) {
         if (context == null) {
-            logger.e(TAG, "context cannot be null, set context with initialize() before calling " + methodName);
+            logger.eFormat(TAG, "context cannot be null, set context with initialize() before calling %s", methodName);
             return false;
         }
         return true;
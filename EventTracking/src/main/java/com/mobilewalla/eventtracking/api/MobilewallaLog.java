@@ -2,6 +2,8 @@ package com.mobilewalla.eventtracking.api;
 
 import android.util.Log;
 
+import com.mobilewalla.eventtracking.util.Provider;
+
 public class MobilewallaLog {
     private volatile boolean enableLogging = true;
     private volatile int logLevel = Log.INFO;
@@ -24,23 +26,62 @@ public class MobilewallaLog {
         return instance;
     }
 
+    /**
+     * Cheap check whether a message at the given level would be written. Use it to guard any
+     * message that is expensive to build, or use the {@link Provider} overloads or the
+     * {@code *Format} methods which defer that work until after this check. The format methods
+     * have their own names so a single {@link Throwable} argument can't bind to the
+     * {@code (tag, msg, tr)} overloads instead.
+     *
+     * @param level the {@link Log} priority
+     * @return whether messages at that level are logged
+     */
+    boolean isLoggable(int level) {
+        return enableLogging && logLevel <= level;
+    }
+
     int d(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.DEBUG) return Log.d(tag, msg);
+        if (isLoggable(Log.DEBUG)) return Log.d(tag, msg);
         return 0;
     }
 
     int d(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.DEBUG) return Log.d(tag, msg, tr);
+        if (isLoggable(Log.DEBUG)) return Log.d(tag, msg, tr);
+        return 0;
+    }
+
+    int d(String tag, Provider<String> msg) {
+        if (isLoggable(Log.DEBUG)) return Log.d(tag, msg.get());
+        return 0;
+    }
+
+    int dFormat(String tag, String format, Object... args) {
+        if (isLoggable(Log.DEBUG)) return Log.d(tag, String.format(format, args));
         return 0;
     }
 
     public int e(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.ERROR) return Log.e(tag, msg);
+        if (isLoggable(Log.ERROR)) return Log.e(tag, msg);
         return 0;
     }
 
     int e(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.ERROR) return Log.e(tag, msg, tr);
+        if (isLoggable(Log.ERROR)) return Log.e(tag, msg, tr);
+        return 0;
+    }
+
+    int e(String tag, Provider<String> msg) {
+        if (isLoggable(Log.ERROR)) return Log.e(tag, msg.get());
+        return 0;
+    }
+
+    int eFormat(String tag, String format, Object... args) {
+        if (isLoggable(Log.ERROR)) return Log.e(tag, String.format(format, args));
+        return 0;
+    }
+
+    int eFormat(String tag, Throwable tr, String format, Object... args) {
+        if (isLoggable(Log.ERROR)) return Log.e(tag, String.format(format, args), tr);
         return 0;
     }
 
@@ -49,12 +90,22 @@ public class MobilewallaLog {
     }
 
     int i(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.INFO) return Log.i(tag, msg);
+        if (isLoggable(Log.INFO)) return Log.i(tag, msg);
         return 0;
     }
 
     int i(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.INFO) return Log.i(tag, msg, tr);
+        if (isLoggable(Log.INFO)) return Log.i(tag, msg, tr);
+        return 0;
+    }
+
+    int i(String tag, Provider<String> msg) {
+        if (isLoggable(Log.INFO)) return Log.i(tag, msg.get());
+        return 0;
+    }
+
+    int iFormat(String tag, String format, Object... args) {
+        if (isLoggable(Log.INFO)) return Log.i(tag, String.format(format, args));
         return 0;
     }
 
@@ -67,42 +118,67 @@ public class MobilewallaLog {
     }
 
     int v(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.VERBOSE) return Log.v(tag, msg);
+        if (isLoggable(Log.VERBOSE)) return Log.v(tag, msg);
         return 0;
     }
 
     int v(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.VERBOSE) return Log.v(tag, msg, tr);
+        if (isLoggable(Log.VERBOSE)) return Log.v(tag, msg, tr);
+        return 0;
+    }
+
+    int v(String tag, Provider<String> msg) {
+        if (isLoggable(Log.VERBOSE)) return Log.v(tag, msg.get());
+        return 0;
+    }
+
+    int vFormat(String tag, String format, Object... args) {
+        if (isLoggable(Log.VERBOSE)) return Log.v(tag, String.format(format, args));
         return 0;
     }
 
     int w(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.WARN) return Log.w(tag, msg);
+        if (isLoggable(Log.WARN)) return Log.w(tag, msg);
         return 0;
     }
 
     int w(String tag, Throwable tr) {
-        if (enableLogging && logLevel <= Log.WARN) return Log.w(tag, tr);
+        if (isLoggable(Log.WARN)) return Log.w(tag, tr);
         return 0;
     }
 
     int w(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.WARN) return Log.w(tag, msg, tr);
+        if (isLoggable(Log.WARN)) return Log.w(tag, msg, tr);
+        return 0;
+    }
+
+    int w(String tag, Provider<String> msg) {
+        if (isLoggable(Log.WARN)) return Log.w(tag, msg.get());
+        return 0;
+    }
+
+    int wFormat(String tag, String format, Object... args) {
+        if (isLoggable(Log.WARN)) return Log.w(tag, String.format(format, args));
+        return 0;
+    }
+
+    int wFormat(String tag, Throwable tr, String format, Object... args) {
+        if (isLoggable(Log.WARN)) return Log.w(tag, String.format(format, args), tr);
         return 0;
     }
 
     int wtf(String tag, String msg) {
-        if (enableLogging && logLevel <= Log.ASSERT) return Log.wtf(tag, msg);
+        if (isLoggable(Log.ASSERT)) return Log.wtf(tag, msg);
         return 0;
     }
 
     int wtf(String tag, Throwable tr) {
-        if (enableLogging && logLevel <= Log.ASSERT) return Log.wtf(tag, tr);
+        if (isLoggable(Log.ASSERT)) return Log.wtf(tag, tr);
         return 0;
     }
 
     int wtf(String tag, String msg, Throwable tr) {
-        if (enableLogging && logLevel <= Log.ASSERT) return Log.wtf(tag, msg, tr);
+        if (isLoggable(Log.ASSERT)) return Log.wtf(tag, msg, tr);
         return 0;
     }
 }
@@ -0,0 +1,123 @@
+package com.mobilewalla.eventtracking.api;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Follows battery level, charging state, battery saver and Doze, and turns them into an
+ * {@link UploadPowerPolicy}. The battery level comes from the sticky battery broadcast, re-read
+ * only when the charger is connected or the battery turns low or okay, so the SDK is not woken up
+ * by every level change.
+ */
+class PowerMonitor {
+
+    private static final String TAG = PowerMonitor.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+
+    interface Listener {
+        /**
+         * Called whenever the policy changes: on the thread calling {@link #start(Context)} if
+         * the initial state differs from the default, then on the main thread.
+         */
+        void onPowerPolicyChanged(UploadPowerPolicy policy);
+    }
+
+    private final Listener listener;
+    private Context context;
+    private PowerManager powerManager;
+    private volatile UploadPowerPolicy policy = UploadPowerPolicy.DEFAULT;
+    private volatile boolean charging = false;
+    private boolean started = false;
+
+    PowerMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    UploadPowerPolicy getPolicy() {
+        return policy;
+    }
+
+    boolean isCharging() {
+        return charging;
+    }
+
+    /**
+     * Reads the current state and subscribes to changes. Does nothing if already started.
+     */
+    synchronized void start(Context context) {
+        if (started) {
+            return;
+        }
+        started = true;
+        this.context = context;
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(Intent.ACTION_BATTERY_LOW);
+        filter.addAction(Intent.ACTION_BATTERY_OKAY);
+        if (Build.VERSION.SDK_INT >= 21) {
+            filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        }
+        if (Build.VERSION.SDK_INT >= 23) {
+            filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        }
+        try {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    refresh();
+                }
+            }, filter);
+        } catch (SecurityException | IllegalArgumentException e) {
+            logger.wFormat(TAG, "Unable to monitor power state: %s", e);
+        }
+        refresh();
+    }
+
+    private void refresh() {
+        int batteryPercent = -1;
+        boolean isCharging = false;
+        try {
+            // sticky broadcast, registering a null receiver just returns the last one
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (level >= 0 && scale > 0) {
+                    batteryPercent = level * 100 / scale;
+                }
+                // plugged in counts as charging, even once the battery is full
+                isCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            }
+        } catch (RuntimeException e) {
+            logger.wFormat(TAG, "Unable to read battery state: %s", e);
+        }
+
+        UploadPowerPolicy updated = UploadPowerPolicy.forState(
+                isCharging, batteryPercent, isPowerSaveMode(), isDeviceIdleMode());
+        charging = isCharging;
+        if (!updated.equals(policy)) {
+            policy = updated;
+            logger.dFormat(TAG, "Power state changed, charging: %s, battery: %d%%", isCharging, batteryPercent);
+            listener.onPowerPolicyChanged(updated);
+        }
+    }
+
+    @TargetApi(21)
+    private boolean isPowerSaveMode() {
+        return Build.VERSION.SDK_INT >= 21 && powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    @TargetApi(23)
+    private boolean isDeviceIdleMode() {
+        return Build.VERSION.SDK_INT >= 23 && powerManager != null && powerManager.isDeviceIdleMode();
+    }
+}
@@ -0,0 +1,63 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.mobilewalla.eventtracking.util.DoubleCheck;
+import com.mobilewalla.eventtracking.util.Provider;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The HTTP client shared by every {@link MobilewallaClient} that was not given its own, so all
+ * instances use one connection pool, dispatcher and TLS session cache. Connections are kept alive
+ * between uploads and multiplexed over HTTP/2 where the server supports it, and host lookups are
+ * cached by {@link #DNS}.
+ */
+class SharedHttpClient {
+
+    static final CachingDns DNS = new CachingDns(Dns.SYSTEM, Constants.DNS_CACHE_TTL_MILLIS);
+
+    private static volatile OkHttpClient configured;
+    private static final Provider<OkHttpClient> defaultClient = DoubleCheck.provider(SharedHttpClient::create);
+
+    private SharedHttpClient() {} // prevent instantiation
+
+    /**
+     * @return the client set with {@link #set(OkHttpClient)}, or the default one
+     */
+    static OkHttpClient get() {
+        OkHttpClient client = configured;
+        return client != null ? client : defaultClient.get();
+    }
+
+    /**
+     * Replaces the shared client, e.g. one derived with {@code newBuilder()} from the app's own
+     * client so the SDK shares its connection pool. Applies to uploads started afterwards.
+     */
+    static void set(OkHttpClient client) {
+        configured = client;
+    }
+
+    static OkHttpClient create() {
+        // uploads are asynchronous calls, limited by the upload window rather than the dispatcher
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(Constants.EVENT_UPLOAD_MAX_CONCURRENCY);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(Constants.HTTP_MAX_IDLE_CONNECTIONS,
+                        Constants.HTTP_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(Constants.HTTP_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .readTimeout(Constants.HTTP_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .writeTimeout(Constants.HTTP_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .callTimeout(Constants.HTTP_CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .dns(DNS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+}
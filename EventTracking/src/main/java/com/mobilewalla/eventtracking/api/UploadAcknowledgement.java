@@ -0,0 +1,73 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Body of an event upload response that acknowledges a batch event by event:
+ * {@code {"accepted": [ids], "rejected": [ids], "message": "..."}}, with ids as sent in each
+ * event's {@code eventId}. Accepted events are deleted, rejected ones quarantined, and any others
+ * in the batch are left to be uploaded again. Responses without either list acknowledge the
+ * whole batch.
+ */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+class UploadAcknowledgement {
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private List<Long> accepted;
+    private List<Long> rejected;
+    /**
+     * Why the rejected events were rejected.
+     */
+    private String message;
+
+    /**
+     * @return the acknowledgement, or null if the body doesn't list accepted or rejected events
+     */
+    static UploadAcknowledgement parse(String body) {
+        if (body == null || body.trim().length() == 0) {
+            return null;
+        }
+        try {
+            UploadAcknowledgement ack = mapper.readValue(body, UploadAcknowledgement.class);
+            return ack != null && (ack.accepted != null || ack.rejected != null) ? ack : null;
+        } catch (IOException e) {
+            return null; // not an acknowledgement, e.g. a plain text body
+        }
+    }
+
+    List<Long> getAcceptedWithin(UploadWindow.Range range) {
+        return within(accepted, range);
+    }
+
+    List<Long> getRejectedWithin(UploadWindow.Range range) {
+        return within(rejected, range);
+    }
+
+    // ids outside the batch are ignored, so the server can't delete events it wasn't sent
+    private static List<Long> within(List<Long> ids, UploadWindow.Range range) {
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        List<Long> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (id != null && id >= range.minId && id <= range.maxId) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+}
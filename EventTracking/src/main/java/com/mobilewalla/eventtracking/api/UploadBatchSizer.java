@@ -0,0 +1,122 @@
+package com.mobilewalla.eventtracking.api;
+
+/**
+ * Chooses how many events go into the next upload batch, using additive increase and
+ * multiplicative decrease (AIMD). The batch grows by a fixed step after each fast successful
+ * upload and is halved after a 413, a timeout or a response slower than the latency target. It
+ * is further capped so the expected payload, estimated from the bytes per event actually put on
+ * the wire, stays within a byte budget. Both caps are scaled up when network and power state make
+ * larger uploads cheap.
+ */
+class UploadBatchSizer {
+
+    /**
+     * Weight of the newest sample in the moving averages.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final long targetBytes;
+    private final long targetLatencyMillis;
+    private int maxBatchSize;
+    private int batchSize;
+    private int scale = 1;
+    private double bytesPerEvent = -1;
+    private double latencyMillis = -1;
+
+    UploadBatchSizer(int maxBatchSize) {
+        this(maxBatchSize, Constants.UPLOAD_BATCH_TARGET_BYTES,
+                Constants.UPLOAD_BATCH_TARGET_LATENCY_MILLIS);
+    }
+
+    UploadBatchSizer(int maxBatchSize, long targetBytes, long targetLatencyMillis) {
+        this.targetBytes = targetBytes;
+        this.targetLatencyMillis = targetLatencyMillis;
+        setMaxBatchSize(maxBatchSize);
+    }
+
+    /**
+     * Sets the upper bound on the batch size, and starts over from it.
+     */
+    synchronized void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.batchSize = this.maxBatchSize;
+    }
+
+    /**
+     * Multiplies the batch size and byte budget caps, e.g. on an unmetered network.
+     */
+    synchronized void setScale(int scale) {
+        this.scale = Math.max(1, scale);
+        batchSize = Math.min(batchSize, maxBatchSize * this.scale);
+    }
+
+    /**
+     * @return the number of events to put in the next batch, at least 1
+     */
+    synchronized int getBatchSize() {
+        int size = batchSize;
+        if (bytesPerEvent > 0) {
+            size = Math.min(size, (int) Math.max(1, targetBytes * scale / bytesPerEvent));
+        }
+        return size;
+    }
+
+    /**
+     * Records an acknowledged batch.
+     *
+     * @param eventCount the number of events in the batch
+     * @param wireBytes  the bytes put on the wire, or -1 if unknown
+     * @param latencyMs  the time from sending the request to receiving the response
+     */
+    synchronized void onSuccess(int eventCount, long wireBytes, long latencyMs) {
+        recordBytes(eventCount, wireBytes);
+        latencyMillis = latencyMillis < 0 ? latencyMs : average(latencyMillis, latencyMs);
+        if (latencyMs > targetLatencyMillis) {
+            decrease(eventCount);
+        } else if (eventCount >= batchSize) {
+            // only grow when the current size was actually used, not for a partial batch
+            batchSize = Math.min(maxBatchSize * scale, batchSize + Constants.UPLOAD_BATCH_ADDITIVE_INCREASE);
+        }
+    }
+
+    /**
+     * Records a batch the server rejected as too large.
+     */
+    synchronized void onTooLarge(int eventCount, long wireBytes) {
+        recordBytes(eventCount, wireBytes);
+        decrease(eventCount);
+    }
+
+    /**
+     * Records a batch that timed out.
+     */
+    synchronized void onTimeout(int eventCount) {
+        decrease(eventCount);
+    }
+
+    /**
+     * @return the current state, for monitoring
+     */
+    synchronized UploadBatchStats getStats() {
+        return new UploadBatchStats(getBatchSize(), maxBatchSize * scale, targetBytes * scale,
+                Math.round(bytesPerEvent), Math.round(latencyMillis));
+    }
+
+    private void decrease(int eventCount) {
+        // halve what was sent, which may be less than the window if the backlog was short
+        int sent = Math.max(1, Math.min(batchSize, eventCount));
+        batchSize = Math.max(1, (int) Math.ceil(sent * Constants.UPLOAD_BATCH_DECREASE_FACTOR));
+    }
+
+    private void recordBytes(int eventCount, long wireBytes) {
+        if (eventCount <= 0 || wireBytes <= 0) {
+            return;
+        }
+        double sample = (double) wireBytes / eventCount;
+        bytesPerEvent = bytesPerEvent < 0 ? sample : average(bytesPerEvent, sample);
+    }
+
+    private static double average(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+}
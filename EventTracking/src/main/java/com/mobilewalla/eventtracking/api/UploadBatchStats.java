@@ -0,0 +1,22 @@
+package com.mobilewalla.eventtracking.api;
+
+import lombok.Value;
+
+/**
+ * Snapshot of the adaptive upload batch sizing, see
+ * {@link MobilewallaClient#getUploadBatchStats()}. Averages are -1 until the first upload.
+ */
+@Value
+public class UploadBatchStats {
+    /**
+     * The number of events the next batch may hold.
+     */
+    int batchSize;
+    int maxBatchSize;
+    long targetBytes;
+    /**
+     * Moving average of the bytes each event takes on the wire, after compression.
+     */
+    long averageBytesPerEvent;
+    long averageLatencyMillis;
+}
@@ -0,0 +1,77 @@
+package com.mobilewalla.eventtracking.api;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+
+/**
+ * Drains unsent events in the background once the app has left the foreground, so events logged
+ * right before the process is killed don't wait for the next launch. The job requires a network,
+ * and runs the client's regular batching, retry and authentication code.
+ * <p>
+ * Enabled with {@link MobilewallaClient#enableBackgroundUpload(boolean)}. If the process was
+ * killed, the job can only upload for clients that are initialized again when the process
+ * restarts, i.e. from {@code Application.onCreate()}; otherwise it finishes without uploading
+ * and events wait for the next launch as before.
+ */
+@TargetApi(21)
+public class UploadJobService extends JobService {
+
+    private static final String TAG = UploadJobService.class.getName();
+    private static final MobilewallaLog logger = MobilewallaLog.getLogger();
+
+    static final String EXTRA_INSTANCE_NAME = "instance_name";
+
+    /**
+     * Schedules the upload job for an instance, replacing a pending one.
+     */
+    static void schedule(Context context, String instanceName, long backoffMillis) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_INSTANCE_NAME, instanceName);
+        JobInfo job = new JobInfo.Builder(getJobId(instanceName),
+                new ComponentName(context, UploadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(backoffMillis, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        try {
+            scheduler.schedule(job);
+        } catch (RuntimeException e) {
+            // service missing from the merged manifest, or too many jobs scheduled by the app
+            logger.wFormat(TAG, "Unable to schedule background upload: %s", e);
+        }
+    }
+
+    static int getJobId(String instanceName) {
+        return Constants.UPLOAD_JOB_ID_BASE + (instanceName.hashCode() & 0xFFFF);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        String instanceName = params.getExtras().getString(EXTRA_INSTANCE_NAME);
+        MobilewallaClient client = Mobilewalla.getInstance(instanceName);
+        if (client.context == null) {
+            logger.wFormat(TAG, "Instance %s is not initialized, skipping background upload", instanceName);
+            return false;
+        }
+        client.flushEvents(complete -> jobFinished(params, !complete));
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // constraints no longer met; the canceled events are uploaded when the job reschedules
+        String instanceName = params.getExtras().getString(EXTRA_INSTANCE_NAME);
+        Mobilewalla.getInstance(instanceName).cancelUploads();
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+package com.mobilewalla.eventtracking.api;
+
+/**
+ * Maps the device's power state to how eagerly events are uploaded. While charging, periods are
+ * shortened and batches grown, since radio and CPU time are free. In battery saver, Doze or on a
+ * low battery, periods are stretched and batches grown, so the radio wakes up less often and
+ * sends more per wake-up. Otherwise the configured period and batch size apply.
+ */
+class UploadPowerPolicy {
+
+    static final UploadPowerPolicy DEFAULT = new UploadPowerPolicy(1, 1);
+
+    private final double periodFactor;
+    private final int batchScale;
+
+    private UploadPowerPolicy(double periodFactor, int batchScale) {
+        this.periodFactor = periodFactor;
+        this.batchScale = batchScale;
+    }
+
+    /**
+     * @param charging       whether the device is plugged in
+     * @param batteryPercent the battery level from 0 to 100, or -1 if unknown
+     * @param powerSave      whether battery saver is on
+     * @param idle           whether the device is in Doze
+     */
+    static UploadPowerPolicy forState(boolean charging, int batteryPercent, boolean powerSave, boolean idle) {
+        if (idle || powerSave || (!charging && batteryPercent >= 0
+                && batteryPercent <= Constants.LOW_BATTERY_PERCENT)) {
+            return new UploadPowerPolicy(Constants.POWER_SAVE_UPLOAD_PERIOD_FACTOR,
+                    Constants.POWER_SAVE_UPLOAD_BATCH_SCALE);
+        }
+        if (charging) {
+            return new UploadPowerPolicy(Constants.CHARGING_UPLOAD_PERIOD_FACTOR,
+                    Constants.CHARGING_UPLOAD_BATCH_SCALE);
+        }
+        return DEFAULT;
+    }
+
+    long scalePeriod(long periodMillis) {
+        return (long) (periodMillis * periodFactor);
+    }
+
+    int getBatchScale() {
+        return batchScale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UploadPowerPolicy)) {
+            return false;
+        }
+        UploadPowerPolicy other = (UploadPowerPolicy) o;
+        return periodFactor == other.periodFactor && batchScale == other.batchScale;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(periodFactor);
+        return 31 * (int) (bits ^ (bits >>> 32)) + batchScale;
+    }
+}
@@ -0,0 +1,141 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides when failed uploads may be retried, so a backend outage does not turn into a retry
+ * storm from every device. After each failure the next attempt waits a random delay between zero
+ * and an exponentially growing bound (full jitter), or as long as the server asked for with
+ * {@code Retry-After}. After several consecutive failures the circuit opens and uploads pause
+ * for longer; once that pause is over, a single trial upload decides whether to resume or to
+ * pause again.
+ */
+class UploadRetryPolicy {
+
+    /**
+     * Returned by {@link #reserveAttempt(long)} while the trial upload is in flight.
+     */
+    static final long AWAITING_TRIAL = -1;
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Random random;
+
+    private int consecutiveFailures = 0;
+    private long nextAttemptAtMillis = 0;
+    private boolean open = false;
+    private boolean trialInFlight = false;
+
+    UploadRetryPolicy() {
+        this(Constants.UPLOAD_RETRY_BASE_DELAY_MILLIS, Constants.UPLOAD_RETRY_MAX_DELAY_MILLIS,
+                Constants.UPLOAD_CIRCUIT_BREAKER_THRESHOLD, Constants.UPLOAD_CIRCUIT_BREAKER_OPEN_MILLIS,
+                new Random());
+    }
+
+    UploadRetryPolicy(long baseDelayMillis, long maxDelayMillis, int failureThreshold,
+                      long openMillis, Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.random = random;
+    }
+
+    /**
+     * Asks to start an upload. While the circuit is open, the first call after the pause reserves
+     * the single trial upload.
+     *
+     * @return 0 if the upload may start, the millis until it may otherwise, or
+     * {@link #AWAITING_TRIAL} if it must wait for the trial upload's result
+     */
+    synchronized long reserveAttempt(long nowMillis) {
+        if (nowMillis < nextAttemptAtMillis) {
+            return nextAttemptAtMillis - nowMillis;
+        }
+        if (open) {
+            if (trialInFlight) {
+                return AWAITING_TRIAL;
+            }
+            trialInFlight = true;
+        }
+        return 0;
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        nextAttemptAtMillis = 0;
+        open = false;
+        trialInFlight = false;
+    }
+
+    /**
+     * Records a failed upload and schedules the next attempt.
+     *
+     * @param retryAfterMillis the delay the server asked for, or -1
+     * @return the millis until the next attempt
+     */
+    synchronized long onFailure(long nowMillis, long retryAfterMillis) {
+        consecutiveFailures++;
+        trialInFlight = false;
+
+        long delay;
+        if (retryAfterMillis >= 0) {
+            delay = Math.min(retryAfterMillis, Constants.UPLOAD_RETRY_AFTER_MAX_MILLIS);
+        } else {
+            int exponent = Math.min(consecutiveFailures - 1, 30);
+            long bound = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+            delay = (long) (random.nextDouble() * bound);
+        }
+        if (consecutiveFailures >= failureThreshold) {
+            open = true;
+            delay = Math.max(delay, openMillis);
+        }
+        // failures of batches already in flight never bring the next attempt forward
+        nextAttemptAtMillis = Math.max(nextAttemptAtMillis, nowMillis + delay);
+        return nextAttemptAtMillis - nowMillis;
+    }
+
+    /**
+     * Records an upload canceled before the server answered. It says nothing about the server,
+     * so only releases the trial, if it was one, for the next attempt to take.
+     */
+    synchronized void onCanceled() {
+        trialInFlight = false;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Parses a {@code Retry-After} header, given either in seconds or as an HTTP date.
+     *
+     * @return the delay in millis, or -1 if the header is missing or malformed
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null || value.trim().length() == 0) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not delta seconds, try an HTTP date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(value).getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.mobilewalla.eventtracking.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the upload batches currently in flight as disjoint ranges of event ids, bounded by a
+ * concurrency limit. A range stays in the window until its batch is acknowledged and deleted, or
+ * has failed, so the events it covers are never sent twice at the same time and are picked up
+ * again once released.
+ */
+class UploadWindow {
+
+    /**
+     * The ids of one in-flight batch.
+     */
+    static final class Range {
+        final long minId;
+        final long maxId;
+
+        Range(long minId, long maxId) {
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + minId + ", " + maxId + "]";
+        }
+    }
+
+    /**
+     * In-flight ranges, ordered by id.
+     */
+    private final List<Range> inFlight = new ArrayList<>();
+    private int concurrency;
+
+    UploadWindow(int concurrency) {
+        setConcurrency(concurrency);
+    }
+
+    synchronized void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    synchronized boolean hasCapacity() {
+        return inFlight.size() < concurrency;
+    }
+
+    synchronized int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the id intervals not covered by an in-flight batch, lowest first, as
+     * {@code {afterId, upToId}} pairs of an exclusive lower and inclusive upper bound. A batch
+     * taken from within one interval never straddles another batch.
+     */
+    synchronized List<long[]> getFreeIntervals() {
+        List<long[]> intervals = new ArrayList<>(inFlight.size() + 1);
+        long afterId = -1;
+        for (Range range : inFlight) {
+            if (range.minId - 1 > afterId) {
+                intervals.add(new long[]{afterId, range.minId - 1});
+            }
+            afterId = range.maxId;
+        }
+        intervals.add(new long[]{afterId, Long.MAX_VALUE});
+        return intervals;
+    }
+
+    /**
+     * Claims a range of ids for a new batch.
+     *
+     * @return the range, or null if the window is full or the range overlaps one in flight
+     */
+    synchronized Range acquire(long minId, long maxId) {
+        if (minId > maxId || inFlight.size() >= concurrency) {
+            return null;
+        }
+        int index = 0;
+        while (index < inFlight.size() && inFlight.get(index).maxId < minId) {
+            index++;
+        }
+        if (index < inFlight.size() && inFlight.get(index).minId <= maxId) {
+            return null;
+        }
+        Range range = new Range(minId, maxId);
+        inFlight.add(index, range);
+        return range;
+    }
+
+    /**
+     * Removes a batch from the window, after it was acknowledged and deleted or failed.
+     */
+    synchronized void release(Range range) {
+        inFlight.remove(range);
+    }
+}
@@ -0,0 +1,28 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+
+/**
+ * A {@code Content-Type} the SDK can send upload bodies in. Implement this to plug in formats
+ * beyond the built-in ones in {@link WireFormats}.
+ */
+public interface WireFormat {
+
+    /**
+     * @return the {@code Content-Type}, e.g. {@code "application/cbor"}
+     */
+    String getContentType();
+
+    /**
+     * Writes an upload batch in this format. The batch is a tree of JSON values, passed as a
+     * stream of tokens so formats can encode it without going through JSON text.
+     *
+     * @param batch the batch's tokens, positioned before the first one; closed by the caller
+     * @param sink  the sink receiving the encoded batch
+     */
+    void write(JsonParser batch, BufferedSink sink) throws IOException;
+}
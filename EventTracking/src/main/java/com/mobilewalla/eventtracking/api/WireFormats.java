@@ -0,0 +1,94 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import okio.BufferedSink;
+
+/**
+ * The built-in {@link WireFormat}s.
+ */
+public final class WireFormats {
+
+    /**
+     * The default format, which every server accepts.
+     */
+    public static final WireFormat JSON = new JacksonWireFormat("application/json; charset=utf-8", new JsonFactory());
+
+    /**
+     * Concise Binary Object Representation (RFC 8949): the same data model as JSON, with binary
+     * numbers and length-prefixed strings instead of quotes, separators and decimal digits.
+     */
+    public static final WireFormat CBOR = new JacksonWireFormat("application/cbor", new CBORFactory());
+
+    private WireFormats() {} // prevent instantiation
+
+    /**
+     * Writes the batch's tokens with a Jackson generator, one at a time.
+     */
+    private static final class JacksonWireFormat implements WireFormat {
+        private final String contentType;
+        private final JsonFactory factory;
+
+        JacksonWireFormat(String contentType, JsonFactory factory) {
+            this.contentType = contentType;
+            this.factory = factory;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void write(JsonParser batch, BufferedSink sink) throws IOException {
+            try (JsonGenerator generator = factory.createGenerator(sink.outputStream())) {
+                // the sink is owned by the caller
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                batch.nextToken();
+                generator.copyCurrentStructure(batch);
+            }
+        }
+    }
+
+    /**
+     * Picks the first of the preferred formats a server lists in an {@code Accept-Post} header
+     * (RFC 9110), as sent with a 415 response. Parameters such as {@code charset} are ignored.
+     *
+     * @param preferred  the formats the SDK may use, most preferred first
+     * @param acceptPost the header value, may be null
+     * @return the format to use, or {@link #JSON} if the server lists none of them
+     */
+    static WireFormat negotiate(Iterable<WireFormat> preferred, String acceptPost) {
+        if (acceptPost == null) {
+            return JSON;
+        }
+        for (WireFormat format : preferred) {
+            if (isAccepted(format, acceptPost)) {
+                return format;
+            }
+        }
+        return JSON;
+    }
+
+    static boolean isAccepted(WireFormat format, String acceptPost) {
+        String type = mediaType(format.getContentType());
+        for (String entry : acceptPost.split(",")) {
+            String accepted = mediaType(entry);
+            if (accepted.equals(type) || accepted.equals("*/*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String mediaType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+    }
+}
@@ -6,25 +6,31 @@ import android.os.Process;
 
 public class WorkerThread extends HandlerThread {
 
-    private Handler handler;
+    private volatile Handler handler;
 
     public WorkerThread(String name) {
         super(name, Process.THREAD_PRIORITY_BACKGROUND);
     }
 
     void post(Runnable r) {
-        waitForInitialization();
-        handler.post(r);
+        waitForInitialization().post(r);
     }
 
     void postDelayed(Runnable r, long delayMillis) {
-        waitForInitialization();
-        handler.postDelayed(r, delayMillis);
+        waitForInitialization().postDelayed(r, delayMillis);
     }
 
-    private synchronized void waitForInitialization() {
-        if (handler == null) {
-            handler = new Handler(getLooper());
+    private Handler waitForInitialization() {
+        Handler result = handler;
+        if (result == null) {
+            synchronized (this) {
+                result = handler;
+                if (result == null) {
+                    result = new Handler(getLooper());
+                    handler = result;
+                }
+            }
         }
+        return result;
     }
 }
@@ -0,0 +1,68 @@
+package com.mobilewalla.eventtracking.util;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide cache of reflection handles. Each class and method is resolved once, including
+ * negative results, so optional dependencies such as Google Play Services that are not on the
+ * classpath do not cost a failed {@code Class.forName} on every probe.
+ */
+public class ReflectionCache {
+
+    /**
+     * Stands in for a class or method that could not be resolved.
+     */
+    private static final Object MISSING = new Object();
+
+    private static final ConcurrentMap<String, Object> classes = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> methods = new ConcurrentHashMap<>();
+
+    private ReflectionCache() {} // prevent instantiation
+
+    /**
+     * Returns the named class, or null if it is not available.
+     */
+    public static Class<?> findClass(String className) {
+        Object cached = classes.get(className);
+        if (cached == null) {
+            try {
+                cached = Class.forName(className);
+            } catch (ClassNotFoundException | LinkageError e) {
+                cached = MISSING;
+            }
+            classes.putIfAbsent(className, cached);
+        }
+        return cached == MISSING ? null : (Class<?>) cached;
+    }
+
+    /**
+     * Returns the public method of the given class, or null if the class is null or the method
+     * does not exist.
+     */
+    public static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        if (clazz == null) {
+            return null;
+        }
+        String key = clazz.getName() + "#" + name + Arrays.toString(parameterTypes);
+        Object cached = methods.get(key);
+        if (cached == null) {
+            try {
+                cached = clazz.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException | SecurityException | LinkageError e) {
+                cached = MISSING;
+            }
+            methods.putIfAbsent(key, cached);
+        }
+        return cached == MISSING ? null : (Method) cached;
+    }
+
+    /**
+     * Returns the public method of the named class, or null if either is not available.
+     */
+    public static Method findMethod(String className, String name, Class<?>... parameterTypes) {
+        return findMethod(findClass(className), name, parameterTypes);
+    }
+}
@@ -12,11 +12,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 public class Utils {
     private static final String TAG = Utils.class.getName();
 
     private static final MobilewallaLog logger = MobilewallaLog.getLogger();
 
+    /**
+     * Last known grant state per permission, so location tracking doesn't do a reflective
+     * permission check on every event. See {@link #invalidatePermissionCache()}.
+     */
+    private static final ConcurrentMap<String, Boolean> permissionStates = new ConcurrentHashMap<>();
+
     /**
      * Do a shallow copy of a JSONObject. Takes a bit of code to avoid
      * stringify and reparse given the API.
@@ -56,6 +66,32 @@ public class Utils {
         return (s == null || s.length() == 0);
     }
 
+    /**
+     * Returns the number of bytes the string takes encoded as UTF-8, without encoding it.
+     */
+    public static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    bytes += 2; // the pair is 4 bytes for 2 chars
+                    i++;
+                }
+                // an unpaired surrogate is encoded as a single '?'
+            } else if (c >= 0x800) {
+                bytes += 2;
+            } else if (c >= 0x80) {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+
     public static String normalizeInstanceName(String instance) {
         if (isEmptyString(instance)) {
             instance = Constants.DEFAULT_INSTANCE;
@@ -71,20 +107,37 @@ public class Utils {
     static boolean checkPermissionAllowed(Context context, String permission) {
         // ANDROID 6.0 AND UP!
         if (android.os.Build.VERSION.SDK_INT >= 23) {
+            Boolean cached = permissionStates.get(permission);
+            if (cached != null) {
+                return cached;
+            }
+
             boolean hasPermission = false;
             try {
                 // Invoke checkSelfPermission method from Android 6 (API 23 and UP)
-                java.lang.reflect.Method methodCheckPermission = Activity.class.getMethod("checkSelfPermission", String.class);
-                Object resultObj = methodCheckPermission.invoke(context, permission);
-                int result = Integer.parseInt(resultObj.toString());
-                hasPermission = (result == PackageManager.PERMISSION_GRANTED);
+                Method methodCheckPermission = ReflectionCache.findMethod(Activity.class, "checkSelfPermission", String.class);
+                if (methodCheckPermission != null) {
+                    Object resultObj = methodCheckPermission.invoke(context, permission);
+                    int result = Integer.parseInt(resultObj.toString());
+                    hasPermission = (result == PackageManager.PERMISSION_GRANTED);
+                }
             } catch (Exception ex) {
 
             }
 
+            permissionStates.put(permission, hasPermission);
             return hasPermission;
         } else {
             return true;
         }
     }
+
+    /**
+     * Forget cached permission states. Revoking a permission kills the process, but one can be
+     * granted while the app is running, so call this whenever that may have happened, e.g. when
+     * the app returns to the foreground.
+     */
+    public static void invalidatePermissionCache() {
+        permissionStates.clear();
+    }
 }
@@ -0,0 +1,143 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AuthenticationManager}, counting the authentication requests that
+ * reach a local mock server.
+ */
+public class AuthenticationManagerTest {
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private AuthenticationManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        MobilewallaLog.getLogger().setEnableLogging(false);
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+        manager = new AuthenticationManager(server.url("/").toString(), "user", "secret");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        MobilewallaLog.getLogger().setEnableLogging(true);
+    }
+
+    private static MockResponse tokenResponse(String token) {
+        return new MockResponse()
+                .setBody("{\"token\":\"" + token + "\",\"expiresIn\":3600}")
+                .setBodyDelay(100, TimeUnit.MILLISECONDS);
+    }
+
+    private static void complete(CompletableFuture<AuthToken> result, AuthToken token, IOException error) {
+        if (error != null) {
+            result.completeExceptionally(error);
+        } else {
+            result.complete(token);
+        }
+    }
+
+    private AuthToken getValidToken(long now) throws Exception {
+        CompletableFuture<AuthToken> result = new CompletableFuture<>();
+        manager.getValidToken(client, now, (token, error) -> complete(result, token, error));
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    private AuthToken authenticate(AuthToken stale, long now) throws Exception {
+        CompletableFuture<AuthToken> result = new CompletableFuture<>();
+        manager.authenticate(client, stale, now, (token, error) -> complete(result, token, error));
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void concurrentCallersShareOneRequest() throws Exception {
+        server.enqueue(tokenResponse("first"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<AuthToken>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final CompletableFuture<AuthToken> result = new CompletableFuture<>();
+            results.add(result);
+            executor.execute(() -> manager.getValidToken(client, System.currentTimeMillis(),
+                    (token, error) -> complete(result, token, error)));
+        }
+        for (CompletableFuture<AuthToken> result : results) {
+            assertEquals("first", result.get(5, TimeUnit.SECONDS).value);
+        }
+        executor.shutdown();
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals("{\"username\":\"user\",\"password\":\"secret\"}",
+                server.takeRequest().getBody().readUtf8());
+    }
+
+    @Test
+    public void rejectedTokenIsReplacedOnce() throws Exception {
+        server.enqueue(tokenResponse("first"));
+        server.enqueue(tokenResponse("second"));
+        long now = System.currentTimeMillis();
+
+        AuthToken stale = getValidToken(now);
+        AuthToken fresh = authenticate(stale, now);
+        assertEquals("second", fresh.value);
+
+        // a second caller holding the same rejected token reuses the replacement
+        assertSame(fresh, authenticate(stale, now));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void expiredTokenIsRefreshed() throws Exception {
+        server.enqueue(tokenResponse("fresh"));
+        long now = System.currentTimeMillis();
+        manager.setToken(new AuthToken("expired", now - 1));
+
+        assertEquals("fresh", getValidToken(now).value);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void failedRequestLeavesNoToken() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("{\"message\":\"down\"}"));
+        long now = System.currentTimeMillis();
+
+        assertNull(getValidToken(now));
+        assertNull(manager.getToken());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void restoredTokenDoesNotReplaceNewerOne() {
+        manager.setToken(new AuthToken("current", -1));
+        manager.restoreToken(new AuthToken("persisted", -1));
+        assertEquals("current", manager.getToken().value);
+    }
+
+    @Test
+    public void sameCredentialsShareManager() {
+        AuthenticationManager a = AuthenticationManager.forCredentials("https://a/", "user", "secret");
+        assertSame(a, AuthenticationManager.forCredentials("https://a/", "user", "secret"));
+        assertNotSame(a, AuthenticationManager.forCredentials("https://a/", "user", "other"));
+        assertNotSame(a, AuthenticationManager.forCredentials("https://b/", "user", "secret"));
+    }
+}
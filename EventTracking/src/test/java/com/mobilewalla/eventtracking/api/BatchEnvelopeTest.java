@@ -0,0 +1,123 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for hoisting shared fields into the header in {@link BatchEnvelope}.
+ */
+public class BatchEnvelopeTest {
+
+    private static final String UPLOAD_TIME = "2022-01-14 10:15:00.123000";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private List<ObjectNode> events(String... events) throws Exception {
+        List<ObjectNode> trees = new ArrayList<>();
+        for (String event : events) {
+            trees.add((ObjectNode) mapper.readTree(event));
+        }
+        return trees;
+    }
+
+    @Test
+    public void hoistsSharedFieldsIntoTheHeader() throws Exception {
+        List<ObjectNode> events = events(
+                "{\"eventType\":\"a\",\"deviceId\":\"d1\",\"osName\":\"android\"}",
+                "{\"eventType\":\"b\",\"deviceId\":\"d1\",\"osName\":\"android\"}",
+                "{\"eventType\":\"c\",\"deviceId\":\"d1\",\"osName\":\"android\"}");
+
+        JsonNode envelope = BatchEnvelope.wrap(events, UPLOAD_TIME);
+
+        JsonNode header = envelope.get("header");
+        assertEquals("d1", header.get("deviceId").asText());
+        assertEquals("android", header.get("osName").asText());
+        assertEquals(UPLOAD_TIME, header.get("serverUploadTime").asText());
+        JsonNode wrapped = envelope.get("events");
+        assertEquals(3, wrapped.size());
+        for (JsonNode event : wrapped) {
+            assertEquals(1, event.size());
+            assertTrue(event.has("eventType"));
+        }
+    }
+
+    @Test
+    public void marksEventsWithoutTheFieldWithNull() throws Exception {
+        List<ObjectNode> events = events(
+                "{\"userId\":\"u1\"}",
+                "{}",
+                "{\"userId\":\"u1\"}");
+
+        JsonNode envelope = BatchEnvelope.wrap(events, UPLOAD_TIME);
+
+        assertEquals("u1", envelope.get("header").get("userId").asText());
+        JsonNode wrapped = envelope.get("events");
+        assertFalse(wrapped.get(0).has("userId"));
+        // present but null, so the header default doesn't apply to it
+        assertTrue(wrapped.get(1).has("userId"));
+        assertTrue(wrapped.get(1).get("userId").isNull());
+        assertFalse(wrapped.get(2).has("userId"));
+    }
+
+    @Test
+    public void tiesGoToTheValueThatGotThereFirst() throws Exception {
+        List<ObjectNode> events = events(
+                "{\"country\":\"US\"}",
+                "{\"country\":\"DE\"}",
+                "{\"country\":\"DE\"}",
+                "{\"country\":\"US\"}");
+
+        JsonNode envelope = BatchEnvelope.wrap(events, UPLOAD_TIME);
+
+        assertEquals("DE", envelope.get("header").get("country").asText());
+        JsonNode wrapped = envelope.get("events");
+        assertEquals("US", wrapped.get(0).get("country").asText());
+        assertFalse(wrapped.get(1).has("country"));
+        assertFalse(wrapped.get(2).has("country"));
+        assertEquals("US", wrapped.get(3).get("country").asText());
+    }
+
+    @Test
+    public void stringsDoNotMatchNumbers() throws Exception {
+        List<ObjectNode> events = events(
+                "{\"apiLevel\":1}",
+                "{\"apiLevel\":\"1\"}",
+                "{\"apiLevel\":1}");
+
+        JsonNode envelope = BatchEnvelope.wrap(events, UPLOAD_TIME);
+
+        JsonNode hoisted = envelope.get("header").get("apiLevel");
+        assertTrue(hoisted.isNumber());
+        assertEquals(1, hoisted.asInt());
+        JsonNode kept = envelope.get("events").get(1).get("apiLevel");
+        assertTrue(kept.isTextual());
+        assertEquals("1", kept.asText());
+        assertFalse(envelope.get("events").get(0).has("apiLevel"));
+    }
+
+    @Test
+    public void leavesBatchesWithoutSharedFieldsAsTheyAre() throws Exception {
+        String[] stored = {
+                "{\"eventType\":\"a\",\"deviceId\":\"d1\"}",
+                "{\"eventType\":\"a\",\"deviceId\":\"d2\",\"language\":\"en\"}"
+        };
+        List<ObjectNode> events = events(stored);
+
+        JsonNode envelope = BatchEnvelope.wrap(events, UPLOAD_TIME);
+
+        JsonNode header = envelope.get("header");
+        assertEquals(1, header.size());
+        assertEquals(UPLOAD_TIME, header.get("serverUploadTime").asText());
+        for (int i = 0; i < stored.length; i++) {
+            assertEquals(mapper.readTree(stored[i]), envelope.get("events").get(i));
+        }
+    }
+}
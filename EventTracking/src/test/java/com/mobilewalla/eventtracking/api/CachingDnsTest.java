@@ -0,0 +1,93 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Dns;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CachingDns}, using a fake resolver and clock.
+ */
+public class CachingDnsTest {
+
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    private static class FakeDns implements Dns {
+        int lookups = 0;
+        boolean failing = false;
+        byte lastOctet = 1;
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            lookups++;
+            if (failing) {
+                throw new UnknownHostException(hostname);
+            }
+            return Collections.singletonList(
+                    InetAddress.getByAddress(hostname, new byte[]{10, 0, 0, lastOctet}));
+        }
+    }
+
+    private static class FakeClockDns extends CachingDns {
+        long now = 1000000;
+
+        FakeClockDns(Dns delegate) {
+            super(delegate, TTL_MILLIS);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void servesCachedAddressesWithinTtl() throws Exception {
+        FakeDns delegate = new FakeDns();
+        FakeClockDns dns = new FakeClockDns(delegate);
+
+        List<InetAddress> first = dns.lookup("api.example.com");
+        dns.now += TTL_MILLIS - 1;
+        assertEquals(first, dns.lookup("api.example.com"));
+        assertEquals(1, delegate.lookups);
+
+        dns.lookup("other.example.com");
+        assertEquals(2, delegate.lookups);
+    }
+
+    @Test
+    public void resolvesAgainAfterTtl() throws Exception {
+        FakeDns delegate = new FakeDns();
+        FakeClockDns dns = new FakeClockDns(delegate);
+
+        dns.lookup("api.example.com");
+        dns.now += TTL_MILLIS;
+        delegate.lastOctet = 2;
+        assertEquals(2, dns.lookup("api.example.com").get(0).getAddress()[3]);
+        assertEquals(2, delegate.lookups);
+    }
+
+    @Test
+    public void fallsBackToExpiredEntryWhenLookupFails() throws Exception {
+        FakeDns delegate = new FakeDns();
+        FakeClockDns dns = new FakeClockDns(delegate);
+
+        List<InetAddress> cached = dns.lookup("api.example.com");
+        dns.now += 2 * TTL_MILLIS;
+        delegate.failing = true;
+        assertEquals(cached, dns.lookup("api.example.com"));
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void failsWithoutCachedEntry() throws Exception {
+        FakeDns delegate = new FakeDns();
+        delegate.failing = true;
+        new FakeClockDns(delegate).lookup("api.example.com");
+    }
+}
@@ -0,0 +1,135 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CompressedRequestBody}, measuring the bytes that reach a local
+ * mock server.
+ */
+public class CompressedRequestBodyTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    /**
+     * A batch shaped like a real upload: 50 events repeating the same device fields.
+     */
+    static String realisticBatch(int numEvents) {
+        StringBuilder builder = new StringBuilder("{\"events\":[");
+        for (int i = 0; i < numEvents; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"eventType\":\"screen_view\",\"eventTime\":\"2022-01-14 10:15:")
+                    .append(String.format("%02d", i % 60)).append(".123000\"")
+                    .append(",\"userId\":\"user@example.com\"")
+                    .append(",\"deviceId\":\"0f8fad5b-d9cb-469f-a165-70867728950eR\"")
+                    .append(",\"sessionId\":1642155300000")
+                    .append(",\"uuid\":\"7c9e6679-7425-40de-944b-e07fc1f9").append(String.format("%04d", i)).append("\"")
+                    .append(",\"sequenceNumber\":").append(1000 + i)
+                    .append(",\"versionName\":\"1.4.2\",\"library\":\"mobilewalla-android\"")
+                    .append(",\"osName\":\"android\",\"osVersion\":\"12\",\"apiLevel\":31")
+                    .append(",\"deviceBrand\":\"google\",\"deviceManufacturer\":\"Google\",\"deviceModel\":\"Pixel 6\"")
+                    .append(",\"deviceCarrier\":\"Singtel\",\"country\":\"SG\",\"language\":\"en\",\"platform\":\"Android\"")
+                    .append(",\"apiProperties\":{\"limitAdTracking\":false,\"gpsEnabled\":true}")
+                    .append(",\"eventProperties\":\"{\\\"screen\\\":\\\"checkout\\\",\\\"step\\\":").append(i % 5).append("}\"")
+                    .append(",\"userProperties\":\"{}\",\"globalUserProperties\":\"{}\",\"groupProperties\":\"{}\"")
+                    .append(",\"eventId\":").append(i + 1)
+                    .append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    private RecordedRequest upload(String body, ContentCodec codec, CompressedRequestBody[] sent) throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(200));
+        CompressedRequestBody requestBody = new CompressedRequestBody(RequestBody.create(JSON, body), codec);
+        sent[0] = requestBody;
+        Request request = new Request.Builder()
+                .url(server.url("/event"))
+                .header("Content-Encoding", codec.getEncoding())
+                .post(requestBody)
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals(200, response.code());
+        }
+        return server.takeRequest();
+    }
+
+    @Test
+    public void gzipShrinksBytesOnWire() throws Exception {
+        String batch = realisticBatch(50);
+        byte[] raw = batch.getBytes("UTF-8");
+        CompressedRequestBody[] sent = new CompressedRequestBody[1];
+
+        RecordedRequest recorded = upload(batch, ContentCodecs.GZIP, sent);
+
+        assertEquals("gzip", recorded.getHeader("Content-Encoding"));
+        long onWire = recorded.getBodySize();
+        assertEquals(onWire, sent[0].getBytesWritten());
+        assertTrue("expected at least 5x reduction, got " + raw.length + " -> " + onWire,
+                onWire * 5 < raw.length);
+
+        Buffer decoded = new Buffer();
+        Okio.buffer(new GzipSource(recorded.getBody())).readAll(decoded);
+        assertTrue(Arrays.equals(raw, decoded.readByteArray()));
+    }
+
+    @Test
+    public void deflateRoundTrips() throws Exception {
+        String batch = realisticBatch(50);
+        byte[] raw = batch.getBytes("UTF-8");
+        CompressedRequestBody[] sent = new CompressedRequestBody[1];
+
+        RecordedRequest recorded = upload(batch, ContentCodecs.DEFLATE, sent);
+
+        assertEquals("deflate", recorded.getHeader("Content-Encoding"));
+        assertTrue(recorded.getBodySize() * 5 < raw.length);
+
+        Buffer decoded = new Buffer();
+        Okio.buffer(new InflaterSource(recorded.getBody(), new Inflater())).readAll(decoded);
+        assertTrue(Arrays.equals(raw, decoded.readByteArray()));
+    }
+
+    @Test
+    public void negotiatesFromAcceptEncoding() {
+        Iterable<ContentCodec> preferred = Arrays.asList(ContentCodecs.GZIP, ContentCodecs.DEFLATE);
+        assertSame(ContentCodecs.GZIP, ContentCodecs.negotiate(preferred, "br, gzip"));
+        assertSame(ContentCodecs.DEFLATE, ContentCodecs.negotiate(preferred, "deflate, gzip;q=0"));
+        assertNull(ContentCodecs.negotiate(preferred, "identity"));
+        assertNull(ContentCodecs.negotiate(preferred, null));
+    }
+}
@@ -0,0 +1,172 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for splicing stored events into an upload body in
+ * {@link EventStreamRequestBody}, and for paging through them with a fake event table.
+ */
+public class EventStreamRequestBodyTest {
+
+    private static final String SUFFIX = EventStreamRequestBody.getEventSuffix("2022-01-14 10:15:00.123000");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Before
+    public void setUp() {
+        MobilewallaLog.getLogger().setEnableLogging(false);
+    }
+
+    @After
+    public void tearDown() {
+        MobilewallaLog.getLogger().setEnableLogging(true);
+    }
+
+    private static String write(String event, long eventId, boolean separator) throws Exception {
+        Buffer buffer = new Buffer();
+        long written = EventStreamRequestBody.writeEvent(buffer, event, eventId, SUFFIX, separator);
+        assertEquals(buffer.size(), written);
+        return buffer.readUtf8();
+    }
+
+    @Test
+    public void addsIdAndUploadTimeWithoutReserializing() throws Exception {
+        String stored = "{\"eventType\":\"screen_view\",\"eventProperties\":{\"title\":\"Café 😀\"},\"n\":1.50}";
+
+        String spliced = write(stored, 42, false);
+
+        // copied byte for byte, e.g. 1.50 isn't rewritten as 1.5
+        assertTrue(spliced.startsWith(stored.substring(0, stored.length() - 1) + ","));
+        JsonNode event = mapper.readTree(spliced);
+        assertEquals(42, event.get("eventId").asLong());
+        assertEquals("2022-01-14 10:15:00.123000", event.get("serverUploadTime").asText());
+        assertEquals("Café 😀", event.get("eventProperties").get("title").asText());
+    }
+
+    @Test
+    public void handlesWhitespaceAndEmptyObjects() throws Exception {
+        assertEquals(7, mapper.readTree(write(" {\"a\":1 }\n", 7, false)).get("eventId").asLong());
+
+        JsonNode empty = mapper.readTree(write("{ }", 8, false));
+        assertEquals(2, empty.size());
+        assertEquals(8, empty.get("eventId").asLong());
+    }
+
+    @Test
+    public void separatesEvents() throws Exception {
+        String batch = "[" + write("{\"a\":1}", 1, false) + write("{\"a\":2}", 2, true) + "]";
+        JsonNode events = mapper.readTree(batch);
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(1).get("eventId").asLong());
+    }
+
+    @Test
+    public void skipsEventsThatAreNotObjects() throws Exception {
+        Buffer buffer = new Buffer();
+        assertEquals(-1, EventStreamRequestBody.writeEvent(buffer, "[1,2]", 1, SUFFIX, true));
+        assertEquals(-1, EventStreamRequestBody.writeEvent(buffer, "{\"a\":", 1, SUFFIX, true));
+        assertEquals(-1, EventStreamRequestBody.writeEvent(buffer, "  ", 1, SUFFIX, true));
+        assertEquals(0, buffer.size());
+    }
+
+    /**
+     * Reads from the rows like the database does, recording the id each page starts after.
+     */
+    private static EventStreamRequestBody.EventReader reader(final TreeMap<Long, String> rows,
+                                                             final List<Long> pages) {
+        return (afterId, upToId, limit, visitor) -> {
+            pages.add(afterId);
+            long lastId = -1;
+            int count = 0;
+            for (Map.Entry<Long, String> row : rows.subMap(afterId, false, upToId, true).entrySet()) {
+                if (count++ == limit) {
+                    break;
+                }
+                lastId = row.getKey();
+                visitor.visit(lastId, row.getValue());
+            }
+            return lastId;
+        };
+    }
+
+    private static String stream(EventStreamRequestBody body) throws Exception {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.getBytesWritten());
+        return buffer.readUtf8();
+    }
+
+    @Test
+    public void streamsRangesLargerThanAPageInOrder() throws Exception {
+        int pageSize = Constants.UPLOAD_STREAM_PAGE_SIZE;
+        int count = 3 * pageSize + 7;
+        TreeMap<Long, String> rows = new TreeMap<>();
+        for (long id = 1; id <= count + 5; id++) {
+            rows.put(id, "{\"n\":" + id + "}");
+        }
+        List<Long> pages = new ArrayList<>();
+        EventStreamRequestBody body = new EventStreamRequestBody(reader(rows, pages),
+                new UploadWindow.Range(1, count), "2022-01-14 10:15:00.123000");
+
+        JsonNode events = mapper.readTree(stream(body)).get("events");
+
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, events.get(i).get("eventId").asLong());
+            assertEquals(i + 1, events.get(i).get("n").asLong());
+        }
+        assertEquals(4, pages.size());
+        assertEquals(3L * pageSize, (long) pages.get(3));
+    }
+
+    @Test
+    public void skipsEmptyRows() throws Exception {
+        TreeMap<Long, String> rows = new TreeMap<>();
+        rows.put(1L, "");
+        rows.put(2L, "{\"a\":2}");
+        rows.put(3L, null);
+        rows.put(4L, "");
+        rows.put(5L, "{\"a\":5}");
+        rows.put(6L, null);
+        EventStreamRequestBody body = new EventStreamRequestBody(reader(rows, new ArrayList<Long>()),
+                new UploadWindow.Range(1, 6), "2022-01-14 10:15:00.123000");
+
+        JsonNode events = mapper.readTree(stream(body)).get("events");
+
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(0).get("eventId").asLong());
+        assertEquals(5, events.get(1).get("eventId").asLong());
+    }
+
+    @Test
+    public void countsTheBytesSent() throws Exception {
+        TreeMap<Long, String> rows = new TreeMap<>();
+        rows.put(1L, "{\"title\":\"Café 😀\"}");
+        rows.put(2L, "not an event");
+        rows.put(3L, " { } ");
+        rows.put(4L, "{\"title\":\"日本語\"}\n");
+        EventStreamRequestBody body = new EventStreamRequestBody(reader(rows, new ArrayList<Long>()),
+                new UploadWindow.Range(1, 4), "2022-01-14 10:15:00.123000");
+        assertEquals(-1, body.getBytesWritten());
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+
+        assertEquals(buffer.size(), body.getBytesWritten());
+        assertEquals(3, mapper.readTree(buffer.readUtf8()).get("events").size());
+    }
+}
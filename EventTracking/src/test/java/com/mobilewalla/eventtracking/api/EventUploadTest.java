@@ -0,0 +1,324 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link EventUpload}, sending batches to a local mock server through a
+ * fake client.
+ */
+public class EventUploadTest {
+
+    private static final long OPEN_MILLIS = 10 * 60 * 1000;
+
+    private MockWebServer server;
+    private FakeHost host;
+
+    /**
+     * Stands in for the client: real upload window, retry policy and batch sizer, a fake clock,
+     * and single threads for logThread and httpThread.
+     */
+    static class FakeHost implements EventUpload.Host {
+        final MockWebServer server;
+        final UploadWindow window = new UploadWindow(Constants.EVENT_UPLOAD_CONCURRENCY);
+        final UploadRetryPolicy policy;
+        final UploadBatchSizer sizer = new UploadBatchSizer(Constants.EVENT_UPLOAD_MAX_BATCH_SIZE);
+        final OkHttpClient client = new OkHttpClient();
+        final ExecutorService logThread = Executors.newSingleThreadExecutor();
+        final ExecutorService httpThread = Executors.newSingleThreadExecutor();
+        final BlockingQueue<Boolean> finished = new LinkedBlockingQueue<>();
+        final List<EventUpload> uploads = new ArrayList<>();
+        final List<Long> removed = new ArrayList<>();
+        long timeoutMillis = Constants.EVENT_UPLOAD_TIMEOUT_MILLIS;
+        long now = 1000000;
+        long retryDelayMillis = -1;
+        Throwable lastError;
+
+        FakeHost(MockWebServer server, UploadRetryPolicy policy) {
+            this.server = server;
+            this.policy = policy;
+        }
+
+        /**
+         * Uploads one batch through the same path as the client, without waiting for the result.
+         */
+        EventUpload start(long minId, long maxId) {
+            UploadWindow.Range range = window.acquire(minId, maxId);
+            assertNotNull(range);
+            EventUpload upload = new EventUpload(this, client, (int) (maxId - minId + 1), range, "2026-10-19 12:00:00.000");
+            upload.enqueue();
+            return upload;
+        }
+
+        /**
+         * @return whether the server took the batch
+         */
+        boolean awaitFinished() throws InterruptedException {
+            Boolean succeeded = finished.poll(10, TimeUnit.SECONDS);
+            assertNotNull("upload never finished", succeeded);
+            return succeeded;
+        }
+
+        void shutdown() {
+            logThread.shutdownNow();
+            httpThread.shutdownNow();
+        }
+
+        @Override
+        public long getCurrentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void runOnLogThread(Runnable task) {
+            logThread.execute(task);
+        }
+
+        @Override
+        public void runOnHttpThread(Runnable task) {
+            httpThread.execute(task);
+        }
+
+        @Override
+        public UploadWindow getUploadWindow() {
+            return window;
+        }
+
+        @Override
+        public UploadRetryPolicy getUploadRetryPolicy() {
+            return policy;
+        }
+
+        @Override
+        public UploadBatchSizer getUploadBatchSizer() {
+            return sizer;
+        }
+
+        @Override
+        public ContentCodec getUploadContentCodec() {
+            return null;
+        }
+
+        @Override
+        public WireFormat getUploadWireFormat() {
+            return WireFormats.JSON;
+        }
+
+        @Override
+        public String getEventUploadUrl() {
+            return server.url("/event").toString();
+        }
+
+        @Override
+        public long getEventUploadTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        @Override
+        public RequestBody createEventRequestBody(WireFormat format, UploadWindow.Range range,
+                                                  String serverUploadTime) {
+            return RequestBody.create("{\"events\":[]}", Constants.JSON);
+        }
+
+        @Override
+        public void getBearerToken(Call.Factory client, AuthenticationManager.TokenCallback callback) {
+            callback.onToken(new AuthToken("Bearer token", -1), null);
+        }
+
+        @Override
+        public void reauthenticate(Call.Factory client, AuthToken stale,
+                                   AuthenticationManager.TokenCallback callback) {
+            callback.onToken(new AuthToken("Bearer fresh", -1), null);
+        }
+
+        @Override
+        public boolean renegotiateUploadFormat(ContentCodec codec, WireFormat format, Headers headers) {
+            return false;
+        }
+
+        @Override
+        public void removeUploadedEvents(UploadWindow.Range range, UploadAcknowledgement ack) {
+            for (long id = range.minId; id <= range.maxId; id++) {
+                removed.add(id);
+            }
+        }
+
+        @Override
+        public void quarantineEvents(List<Long> eventIds, String reason) {
+        }
+
+        @Override
+        public void onUploadError(Throwable error) {
+            lastError = error;
+        }
+
+        @Override
+        public synchronized void onUploadQueued(EventUpload upload) {
+            uploads.add(upload);
+        }
+
+        @Override
+        public void onUploadFinished(EventUpload upload, boolean succeeded) {
+            synchronized (this) {
+                uploads.remove(upload);
+            }
+            finished.add(succeeded);
+        }
+
+        @Override
+        public void onUploadRetry(long delayMillis) {
+            retryDelayMillis = delayMillis;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MobilewallaLog.getLogger().setEnableLogging(false);
+        server = new MockWebServer();
+        server.start();
+        host = new FakeHost(server, new UploadRetryPolicy(1000, 60 * 1000, 1, OPEN_MILLIS, new Random(42)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        host.shutdown();
+        server.shutdown();
+        MobilewallaLog.getLogger().setEnableLogging(true);
+    }
+
+    /**
+     * Fails one upload, which opens the circuit, and moves the clock to the trial upload.
+     */
+    private void openCircuit() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        host.start(1, 10);
+        assertFalse(host.awaitFinished());
+        assertTrue(host.policy.isOpen());
+        host.now += host.retryDelayMillis;
+        assertEquals(0, host.policy.reserveAttempt(host.now));
+        assertEquals(UploadRetryPolicy.AWAITING_TRIAL, host.policy.reserveAttempt(host.now));
+    }
+
+    @Test
+    public void timedOutTrialReopensCircuit() throws Exception {
+        openCircuit();
+        host.timeoutMillis = 200;
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        host.start(1, 10);
+
+        assertFalse(host.awaitFinished());
+        assertTrue(host.lastError instanceof java.io.InterruptedIOException);
+        assertEquals(0, host.window.size());
+        // the timeout counts as a failure, so the circuit waits for the next trial, not forever
+        assertTrue(host.retryDelayMillis >= OPEN_MILLIS);
+        assertEquals(host.retryDelayMillis, host.policy.reserveAttempt(host.now));
+        assertEquals(0, host.policy.reserveAttempt(host.now + host.retryDelayMillis));
+    }
+
+    @Test
+    public void canceledTrialReleasesTheTrial() throws Exception {
+        openCircuit();
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        EventUpload upload = host.start(1, 10);
+        server.takeRequest(); // the failed upload
+        assertNotNull(server.takeRequest(10, TimeUnit.SECONDS));
+        upload.cancel();
+
+        assertFalse(host.awaitFinished());
+        assertEquals(0, host.window.size());
+        assertEquals(2, server.getRequestCount());
+        // canceling says nothing about the server, so the next upload is the trial right away
+        assertEquals(0, host.policy.reserveAttempt(host.now));
+        assertTrue(host.policy.isOpen());
+    }
+
+    @Test
+    public void uploadCanceledBeforeSendingNeverReachesTheServer() throws Exception {
+        UploadWindow.Range range = host.window.acquire(1, 10);
+        EventUpload upload = new EventUpload(host, host.client, 10, range, "2026-10-19 12:00:00.000");
+        upload.cancel();
+        upload.start();
+
+        assertFalse(host.awaitFinished());
+        assertEquals(0, host.window.size());
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, host.policy.getConsecutiveFailures());
+    }
+
+    @Test
+    public void queuedUploadCanceledBeforeStartingIsAbandoned() throws Exception {
+        CountDownLatch busy = new CountDownLatch(1);
+        host.httpThread.execute(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        host.start(1, 10);
+        synchronized (host) {
+            assertEquals(1, host.uploads.size());
+            host.uploads.get(0).cancel();
+        }
+        busy.countDown();
+
+        assertFalse(host.awaitFinished());
+        assertTrue(host.uploads.isEmpty());
+        assertEquals(0, host.window.size());
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, host.policy.getConsecutiveFailures());
+    }
+
+    @Test
+    public void unexpectedExceptionsFailTheUpload() throws Exception {
+        FakeHost failing = new FakeHost(server, host.policy) {
+            @Override
+            public RequestBody createEventRequestBody(WireFormat format, UploadWindow.Range range,
+                                                      String serverUploadTime) {
+                throw new IllegalStateException("database closed");
+            }
+        };
+        try {
+            failing.start(1, 10);
+            assertFalse(failing.awaitFinished());
+            assertTrue(failing.lastError instanceof IllegalStateException);
+            assertEquals(0, failing.window.size());
+            assertEquals(1, host.policy.getConsecutiveFailures());
+        } finally {
+            failing.shutdown();
+        }
+    }
+
+    @Test
+    public void successRemovesTheBatch() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(200));
+        host.start(1, 3);
+
+        assertTrue(host.awaitFinished());
+        assertEquals(0, host.window.size());
+        assertEquals(3, host.removed.size());
+        assertTrue(host.uploads.isEmpty());
+        assertEquals("Bearer token", server.takeRequest().getHeader("Authorization"));
+    }
+}
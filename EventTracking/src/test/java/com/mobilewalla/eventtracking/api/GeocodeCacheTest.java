@@ -0,0 +1,102 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GeocodeCache}, using a fake resolver in place of the Geocoder.
+ */
+public class GeocodeCacheTest {
+
+    private static class FakeGeocoder implements GeocodeCache.Resolver {
+        final List<double[]> lookups = new ArrayList<>();
+        String countryCode = "SG";
+
+        @Override
+        public String getCountryCode(double latitude, double longitude) {
+            lookups.add(new double[]{latitude, longitude});
+            return countryCode;
+        }
+    }
+
+    private static class MemoryStore implements GeocodeCache.Store {
+        String value;
+
+        @Override
+        public String read() {
+            return value;
+        }
+
+        @Override
+        public void write(String value) {
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void nearbyLocationsShareOneLookup() throws Exception {
+        FakeGeocoder geocoder = new FakeGeocoder();
+        GeocodeCache cache = new GeocodeCache(geocoder, new MemoryStore());
+
+        assertEquals("SG", cache.getCountryCode(1.3521, 103.8198));
+        assertEquals("SG", cache.getCountryCode(1.3550, 103.8101));
+        assertEquals(1, geocoder.lookups.size());
+
+        geocoder.countryCode = "MY";
+        assertEquals("MY", cache.getCountryCode(3.1390, 101.6869));
+        assertEquals(2, geocoder.lookups.size());
+    }
+
+    @Test
+    public void failedLookupsAreNotCached() throws Exception {
+        FakeGeocoder geocoder = new FakeGeocoder();
+        geocoder.countryCode = null;
+        GeocodeCache cache = new GeocodeCache(geocoder, null);
+
+        assertNull(cache.getCountryCode(48.8566, 2.3522));
+        geocoder.countryCode = "FR";
+        assertEquals("FR", cache.getCountryCode(48.8566, 2.3522));
+        assertEquals(2, geocoder.lookups.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedCell() throws Exception {
+        FakeGeocoder geocoder = new FakeGeocoder();
+        GeocodeCache cache = new GeocodeCache(geocoder, null, 2, 0.1);
+
+        cache.getCountryCode(10.05, 10.05);
+        cache.getCountryCode(20.05, 20.05);
+        cache.getCountryCode(10.05, 10.05); // touch the first cell
+        cache.getCountryCode(30.05, 30.05); // evicts the second cell
+        assertEquals(2, cache.size());
+        assertEquals(3, geocoder.lookups.size());
+
+        cache.getCountryCode(10.05, 10.05);
+        assertEquals(3, geocoder.lookups.size());
+        cache.getCountryCode(20.05, 20.05);
+        assertEquals(4, geocoder.lookups.size());
+    }
+
+    @Test
+    public void survivesRestartThroughStore() throws Exception {
+        MemoryStore store = new MemoryStore();
+        new GeocodeCache(new FakeGeocoder(), store).getCountryCode(-33.8688, 151.2093);
+
+        FakeGeocoder geocoder = new FakeGeocoder();
+        GeocodeCache restored = new GeocodeCache(geocoder, store);
+        assertEquals("SG", restored.getCountryCode(-33.8688, 151.2093));
+        assertEquals(0, geocoder.lookups.size());
+    }
+
+    @Test
+    public void cellsAreAboutTenKilometres() {
+        GeocodeCache cache = new GeocodeCache(new FakeGeocoder(), null);
+        assertEquals(cache.cellKey(1.301, 103.801), cache.cellKey(1.399, 103.899));
+        assertNotEquals(cache.cellKey(1.301, 103.801), cache.cellKey(1.401, 103.801));
+        assertNotEquals(cache.cellKey(-0.05, 0.05), cache.cellKey(0.05, 0.05));
+    }
+}
@@ -0,0 +1,53 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadAcknowledgement}.
+ */
+public class UploadAcknowledgementTest {
+
+    private final UploadWindow.Range range = new UploadWindow.Range(10, 14);
+
+    @Test
+    public void parsesAcceptedAndRejectedIds() {
+        UploadAcknowledgement ack = UploadAcknowledgement.parse(
+                "{\"accepted\":[10,11,13],\"rejected\":[12],\"message\":\"invalid eventType\",\"requestId\":\"abc\"}");
+
+        assertNotNull(ack);
+        assertEquals(Arrays.asList(10L, 11L, 13L), ack.getAcceptedWithin(range));
+        assertEquals(Collections.singletonList(12L), ack.getRejectedWithin(range));
+        assertEquals("invalid eventType", ack.getMessage());
+    }
+
+    @Test
+    public void eitherListIsEnough() {
+        UploadAcknowledgement ack = UploadAcknowledgement.parse("{\"rejected\":[14]}");
+
+        assertNotNull(ack);
+        assertTrue(ack.getAcceptedWithin(range).isEmpty());
+        assertEquals(Collections.singletonList(14L), ack.getRejectedWithin(range));
+    }
+
+    @Test
+    public void otherBodiesAcknowledgeTheWholeBatch() {
+        assertNull(UploadAcknowledgement.parse(null));
+        assertNull(UploadAcknowledgement.parse(""));
+        assertNull(UploadAcknowledgement.parse("success"));
+        assertNull(UploadAcknowledgement.parse("{\"message\":\"ok\"}"));
+        assertNull(UploadAcknowledgement.parse("[1,2,3]"));
+    }
+
+    @Test
+    public void ignoresIdsOutsideTheBatch() {
+        UploadAcknowledgement ack = UploadAcknowledgement.parse("{\"accepted\":[9,10,15],\"rejected\":[1,14,null]}");
+
+        assertEquals(Collections.singletonList(10L), ack.getAcceptedWithin(range));
+        assertEquals(Collections.singletonList(14L), ack.getRejectedWithin(range));
+    }
+}
@@ -0,0 +1,96 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadBatchSizer}.
+ */
+public class UploadBatchSizerTest {
+
+    private static final long TARGET_BYTES = 10000;
+    private static final long TARGET_LATENCY_MILLIS = 1000;
+
+    private UploadBatchSizer newSizer(int maxBatchSize) {
+        return new UploadBatchSizer(maxBatchSize, TARGET_BYTES, TARGET_LATENCY_MILLIS);
+    }
+
+    @Test
+    public void halvesOnTooLargeAndGrowsAdditively() {
+        UploadBatchSizer sizer = newSizer(50);
+        assertEquals(50, sizer.getBatchSize());
+
+        sizer.onTooLarge(50, -1);
+        assertEquals(25, sizer.getBatchSize());
+        sizer.onTooLarge(25, -1);
+        assertEquals(13, sizer.getBatchSize());
+
+        sizer.onSuccess(13, -1, 100);
+        assertEquals(13 + Constants.UPLOAD_BATCH_ADDITIVE_INCREASE, sizer.getBatchSize());
+    }
+
+    @Test
+    public void neverExceedsMaxOrDropsBelowOne() {
+        UploadBatchSizer sizer = newSizer(10);
+        for (int i = 0; i < 10; i++) {
+            sizer.onSuccess(sizer.getBatchSize(), -1, 100);
+        }
+        assertEquals(10, sizer.getBatchSize());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.onTimeout(sizer.getBatchSize());
+        }
+        assertEquals(1, sizer.getBatchSize());
+    }
+
+    @Test
+    public void slowResponsesShrinkTheBatch() {
+        UploadBatchSizer sizer = newSizer(40);
+        sizer.onSuccess(40, -1, TARGET_LATENCY_MILLIS + 1);
+        assertEquals(20, sizer.getBatchSize());
+    }
+
+    @Test
+    public void partialBatchesDoNotGrowTheWindow() {
+        UploadBatchSizer sizer = newSizer(50);
+        sizer.onTooLarge(50, -1);
+        sizer.onSuccess(3, -1, 100);
+        assertEquals(25, sizer.getBatchSize());
+    }
+
+    @Test
+    public void capsBatchToByteBudget() {
+        UploadBatchSizer sizer = newSizer(100);
+        // 50 events took 25000 bytes, so only 20 fit the 10000 byte budget
+        sizer.onSuccess(50, 25000, 100);
+        assertEquals(20, sizer.getBatchSize());
+
+        UploadBatchStats stats = sizer.getStats();
+        assertEquals(20, stats.getBatchSize());
+        assertEquals(100, stats.getMaxBatchSize());
+        assertEquals(500, stats.getAverageBytesPerEvent());
+        assertEquals(100, stats.getAverageLatencyMillis());
+    }
+
+    @Test
+    public void scaleRaisesTheCaps() {
+        UploadBatchSizer sizer = newSizer(10);
+        sizer.setScale(2);
+        for (int i = 0; i < 10; i++) {
+            sizer.onSuccess(sizer.getBatchSize(), -1, 100);
+        }
+        assertEquals(20, sizer.getBatchSize());
+        assertEquals(TARGET_BYTES * 2, sizer.getStats().getTargetBytes());
+
+        sizer.setScale(1);
+        assertEquals(10, sizer.getBatchSize());
+    }
+
+    @Test
+    public void statsAreUnknownBeforeFirstUpload() {
+        UploadBatchStats stats = newSizer(50).getStats();
+        assertEquals(-1, stats.getAverageBytesPerEvent());
+        assertEquals(-1, stats.getAverageLatencyMillis());
+    }
+}
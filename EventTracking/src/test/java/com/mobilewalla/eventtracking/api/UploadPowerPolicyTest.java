@@ -0,0 +1,49 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadPowerPolicy}.
+ */
+public class UploadPowerPolicyTest {
+
+    private static final long PERIOD_MILLIS = 30 * 1000;
+
+    @Test
+    public void onBatteryUsesConfiguredPeriod() {
+        UploadPowerPolicy policy = UploadPowerPolicy.forState(false, 80, false, false);
+        assertEquals(UploadPowerPolicy.DEFAULT, policy);
+        assertEquals(PERIOD_MILLIS, policy.scalePeriod(PERIOD_MILLIS));
+        assertEquals(1, policy.getBatchScale());
+    }
+
+    @Test
+    public void chargingUploadsSoonerInLargerBatches() {
+        UploadPowerPolicy policy = UploadPowerPolicy.forState(true, 50, false, false);
+        assertTrue(policy.scalePeriod(PERIOD_MILLIS) < PERIOD_MILLIS);
+        assertTrue(policy.getBatchScale() > 1);
+    }
+
+    @Test
+    public void savingPowerStretchesThePeriod() {
+        UploadPowerPolicy powerSave = UploadPowerPolicy.forState(false, 80, true, false);
+        assertTrue(powerSave.scalePeriod(PERIOD_MILLIS) > PERIOD_MILLIS);
+        assertEquals(powerSave, UploadPowerPolicy.forState(false, 80, false, true));
+        assertEquals(powerSave, UploadPowerPolicy.forState(false, Constants.LOW_BATTERY_PERCENT, false, false));
+        // battery saver wins over the charger
+        assertEquals(powerSave, UploadPowerPolicy.forState(true, 80, true, false));
+    }
+
+    @Test
+    public void lowBatteryWhileChargingIsNotSaving() {
+        assertEquals(UploadPowerPolicy.forState(true, 50, false, false),
+                UploadPowerPolicy.forState(true, 5, false, false));
+    }
+
+    @Test
+    public void unknownBatteryLevelIsNotLow() {
+        assertEquals(UploadPowerPolicy.DEFAULT, UploadPowerPolicy.forState(false, -1, false, false));
+    }
+}
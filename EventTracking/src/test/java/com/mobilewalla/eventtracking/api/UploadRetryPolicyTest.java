@@ -0,0 +1,135 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadRetryPolicy}, driven through the real upload path against a
+ * local mock server that fails on demand, with a fake clock.
+ */
+public class UploadRetryPolicyTest {
+
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 60 * 1000;
+    private static final int THRESHOLD = 4;
+    private static final long OPEN_MILLIS = 10 * 60 * 1000;
+
+    private MockWebServer server;
+    private EventUploadTest.FakeHost host;
+    private UploadRetryPolicy policy;
+    private long now = 1000000;
+
+    @Before
+    public void setUp() throws Exception {
+        MobilewallaLog.getLogger().setEnableLogging(false);
+        server = new MockWebServer();
+        server.start();
+        policy = new UploadRetryPolicy(BASE_DELAY_MILLIS, MAX_DELAY_MILLIS, THRESHOLD, OPEN_MILLIS,
+                new Random(42));
+        host = new EventUploadTest.FakeHost(server, policy);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        host.shutdown();
+        server.shutdown();
+        MobilewallaLog.getLogger().setEnableLogging(true);
+    }
+
+    /**
+     * Makes one upload attempt against the server, asking the policy first the way the client
+     * does.
+     *
+     * @return the delay until the next attempt, or 0 after a success
+     */
+    private long upload() throws Exception {
+        assertEquals(0, policy.reserveAttempt(now));
+        return send();
+    }
+
+    private long send() throws Exception {
+        host.now = now;
+        host.start(1, 10);
+        return host.awaitFinished() ? 0 : host.retryDelayMillis;
+    }
+
+    @Test
+    public void delaysGrowExponentiallyWithinJitterBounds() throws Exception {
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            long delay = upload();
+            long bound = BASE_DELAY_MILLIS << i;
+            assertTrue("delay " + delay + " above " + bound, delay >= 0 && delay <= bound);
+            assertEquals(delay, policy.reserveAttempt(now));
+            now += delay;
+        }
+        assertFalse(policy.isOpen());
+    }
+
+    @Test
+    public void honorsRetryAfter() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+        assertEquals(120 * 1000, upload());
+        assertEquals(60 * 1000, policy.reserveAttempt(now + 60 * 1000));
+        assertEquals(0, policy.reserveAttempt(now + 120 * 1000));
+    }
+
+    @Test
+    public void parsesRetryAfterDates() {
+        long date = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+        assertEquals(30 * 1000, UploadRetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", date - 30 * 1000));
+        assertEquals(0, UploadRetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", date + 1000));
+        assertEquals(-1, UploadRetryPolicy.parseRetryAfter("soon", date));
+        assertEquals(-1, UploadRetryPolicy.parseRetryAfter(null, date));
+    }
+
+    @Test
+    public void circuitOpensThenRecoversThroughSingleTrial() throws Exception {
+        for (int i = 0; i < THRESHOLD; i++) {
+            server.enqueue(new MockResponse().setResponseCode(502));
+            now += upload();
+        }
+        assertTrue(policy.isOpen());
+        assertEquals(THRESHOLD, server.getRequestCount());
+
+        // the pause lasts at least the open period
+        assertTrue(policy.reserveAttempt(now - OPEN_MILLIS + 1) > 0);
+
+        // only one trial upload while the circuit is open
+        server.enqueue(new MockResponse().setResponseCode(200));
+        assertEquals(0, policy.reserveAttempt(now));
+        assertEquals(UploadRetryPolicy.AWAITING_TRIAL, policy.reserveAttempt(now));
+        assertEquals(0, send());
+
+        assertFalse(policy.isOpen());
+        assertEquals(0, policy.getConsecutiveFailures());
+        assertEquals(0, policy.reserveAttempt(now));
+        assertEquals(0, policy.reserveAttempt(now));
+    }
+
+    @Test
+    public void failedTrialReopensCircuit() throws Exception {
+        for (int i = 0; i < THRESHOLD; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            now += upload();
+        }
+        server.enqueue(new MockResponse().setResponseCode(500));
+        assertTrue(upload() >= OPEN_MILLIS);
+        assertTrue(policy.isOpen());
+    }
+
+    @Test
+    public void failuresOfInFlightBatchesDoNotShortenTheWait() {
+        long first = policy.onFailure(now, 30 * 1000);
+        policy.onFailure(now, 0);
+        assertEquals(first, policy.reserveAttempt(now));
+    }
+}
@@ -0,0 +1,68 @@
+package com.mobilewalla.eventtracking.api;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadWindow}.
+ */
+public class UploadWindowTest {
+
+    @Test
+    public void limitsBatchesInFlight() {
+        UploadWindow window = new UploadWindow(2);
+        UploadWindow.Range first = window.acquire(1, 50);
+        UploadWindow.Range second = window.acquire(51, 100);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertFalse(window.hasCapacity());
+        assertNull(window.acquire(101, 150));
+
+        window.release(first);
+        assertTrue(window.hasCapacity());
+        assertNotNull(window.acquire(101, 150));
+    }
+
+    @Test
+    public void rejectsOverlappingRanges() {
+        UploadWindow window = new UploadWindow(4);
+        window.acquire(10, 20);
+        assertNull(window.acquire(20, 30));
+        assertNull(window.acquire(1, 10));
+        assertNull(window.acquire(12, 15));
+        assertNull(window.acquire(1, 40));
+        assertNotNull(window.acquire(21, 30));
+        assertNotNull(window.acquire(1, 9));
+        assertEquals(3, window.size());
+    }
+
+    @Test
+    public void failedRangeIsOfferedAgainBeforeNewerEvents() {
+        UploadWindow window = new UploadWindow(3);
+        UploadWindow.Range a = window.acquire(1, 50);
+        window.acquire(51, 100);
+
+        List<long[]> intervals = window.getFreeIntervals();
+        assertEquals(2, intervals.size());
+        assertArrayEquals(new long[]{-1, 0}, intervals.get(0));
+        assertArrayEquals(new long[]{100, Long.MAX_VALUE}, intervals.get(1));
+
+        // the first batch failed; its events come before anything after the second batch
+        window.release(a);
+        intervals = window.getFreeIntervals();
+        assertEquals(2, intervals.size());
+        assertArrayEquals(new long[]{-1, 50}, intervals.get(0));
+        assertArrayEquals(new long[]{100, Long.MAX_VALUE}, intervals.get(1));
+    }
+
+    @Test
+    public void concurrencyIsAtLeastOne() {
+        UploadWindow window = new UploadWindow(0);
+        assertEquals(1, window.getConcurrency());
+        assertNotNull(window.acquire(1, 1));
+        assertFalse(window.hasCapacity());
+    }
+}
@@ -0,0 +1,109 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okio.Buffer;
+
+/**
+ * Measures how long encoding an upload body takes, and how large it is, for each wire format on
+ * realistic batches. Not a unit test, since timings depend on the machine: run {@link #main}
+ * with the unit test classpath, e.g. from the IDE.
+ * <p>
+ * Each batch goes through the same steps as in {@code MobilewallaClient.createEventRequestBody}:
+ * plain JSON streams the stored events, the other formats parse them into trees and write the
+ * batch from its token stream.
+ */
+public class WireFormatsBenchmark {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String UPLOAD_TIME = "2022-01-14 10:15:00.123000";
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 2000;
+
+    private interface Encoder {
+        long encode() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        MobilewallaLog.getLogger().setEnableLogging(false);
+        System.out.printf("%-8s %-14s %12s %10s%n", "events", "path", "us/batch", "bytes");
+        for (int numEvents : new int[]{10, 50, 250}) {
+            final TreeMap<Long, String> rows = storedEvents(numEvents);
+            final UploadWindow.Range range = new UploadWindow(1).acquire(1, numEvents);
+            run(numEvents, "json stream", () -> {
+                EventStreamRequestBody body = new EventStreamRequestBody(reader(rows), range, UPLOAD_TIME);
+                Buffer buffer = new Buffer();
+                body.writeTo(buffer);
+                return buffer.size();
+            });
+            run(numEvents, "json tokens", () -> encodeTree(WireFormats.JSON, rows));
+            run(numEvents, "cbor tokens", () -> encodeTree(WireFormats.CBOR, rows));
+        }
+    }
+
+    private static void run(int numEvents, String path, Encoder encoder) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            encoder.encode();
+        }
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bytes = encoder.encode();
+        }
+        double micros = (System.nanoTime() - startNanos) / 1000.0 / ITERATIONS;
+        System.out.printf("%-8d %-14s %12.1f %10d%n", numEvents, path, micros, bytes);
+    }
+
+    /**
+     * The events of a realistic batch as the database stores them, without ids.
+     */
+    private static TreeMap<Long, String> storedEvents(int numEvents) throws Exception {
+        TreeMap<Long, String> rows = new TreeMap<>();
+        long id = 1;
+        for (JsonNode event : mapper.readTree(CompressedRequestBodyTest.realisticBatch(numEvents)).get("events")) {
+            ((ObjectNode) event).remove("eventId");
+            rows.put(id++, mapper.writeValueAsString(event));
+        }
+        return rows;
+    }
+
+    private static EventStreamRequestBody.EventReader reader(final TreeMap<Long, String> rows) {
+        return (afterId, upToId, limit, visitor) -> {
+            long lastId = -1;
+            int count = 0;
+            for (Map.Entry<Long, String> row : rows.subMap(afterId, false, upToId, true).entrySet()) {
+                if (count++ == limit) {
+                    break;
+                }
+                lastId = row.getKey();
+                visitor.visit(lastId, row.getValue());
+            }
+            return lastId;
+        };
+    }
+
+    private static long encodeTree(WireFormat format, TreeMap<Long, String> rows) throws Exception {
+        List<ObjectNode> events = new ArrayList<>();
+        for (Map.Entry<Long, String> row : rows.entrySet()) {
+            ObjectNode event = (ObjectNode) mapper.readTree(row.getValue());
+            event.put("eventId", row.getKey());
+            event.put("serverUploadTime", UPLOAD_TIME);
+            events.add(event);
+        }
+        ObjectNode batch = mapper.createObjectNode();
+        batch.putArray("events").addAll(events);
+        Buffer buffer = new Buffer();
+        try (JsonParser tokens = mapper.treeAsTokens(batch)) {
+            format.write(tokens, buffer);
+        }
+        return buffer.size();
+    }
+}
@@ -0,0 +1,67 @@
+package com.mobilewalla.eventtracking.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link WireFormats}, including the payload size of CBOR against JSON on
+ * realistic batches.
+ */
+public class WireFormatsTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static byte[] encode(WireFormat format, String json) throws Exception {
+        Buffer buffer = new Buffer();
+        try (JsonParser tokens = mapper.treeAsTokens(mapper.readTree(json))) {
+            format.write(tokens, buffer);
+        }
+        return buffer.readByteArray();
+    }
+
+    @Test
+    public void cborRoundTripsTheBatch() throws Exception {
+        String batch = CompressedRequestBodyTest.realisticBatch(50);
+
+        JsonNode decoded = new ObjectMapper(new CBORFactory()).readTree(encode(WireFormats.CBOR, batch));
+
+        assertEquals(mapper.readTree(batch), decoded);
+    }
+
+    @Test
+    public void jsonRoundTripsTheBatch() throws Exception {
+        String batch = CompressedRequestBodyTest.realisticBatch(3);
+        assertEquals(mapper.readTree(batch), mapper.readTree(encode(WireFormats.JSON, batch)));
+    }
+
+    @Test
+    public void negotiatesFromAcceptPost() {
+        Iterable<WireFormat> preferred = Arrays.asList(WireFormats.CBOR, WireFormats.JSON);
+        assertSame(WireFormats.CBOR, WireFormats.negotiate(preferred, "application/json, application/cbor"));
+        assertSame(WireFormats.JSON, WireFormats.negotiate(preferred, "application/json;charset=UTF-8"));
+        assertSame(WireFormats.JSON, WireFormats.negotiate(preferred, "text/csv"));
+        assertSame(WireFormats.JSON, WireFormats.negotiate(preferred, null));
+        assertTrue(WireFormats.isAccepted(WireFormats.CBOR, "*/*"));
+    }
+
+    @Test
+    public void cborIsSmallerThanJson() throws Exception {
+        for (int numEvents : new int[]{10, 50, 250}) {
+            String batch = CompressedRequestBodyTest.realisticBatch(numEvents);
+            long jsonBytes = encode(WireFormats.JSON, batch).length;
+            long cborBytes = encode(WireFormats.CBOR, batch).length;
+            assertTrue("expected cbor to be smaller, got " + jsonBytes + " -> " + cborBytes,
+                    cborBytes < jsonBytes);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.mobilewalla.eventtracking.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link Utils}.
+ */
+public class UtilsTest {
+
+    @Test
+    public void utf8LengthMatchesEncodedLength() {
+        String[] samples = {
+                "", "{\"eventType\":\"screen_view\"}", "café", "東京", "emoji 😀 ok",
+                "lone \uD83D surrogate"
+        };
+        for (String sample : samples) {
+            assertEquals(sample, sample.getBytes(StandardCharsets.UTF_8).length, Utils.utf8Length(sample));
+        }
+        assertEquals(0, Utils.utf8Length(null));
+    }
+}